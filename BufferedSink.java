@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+// Sink that encodes text straight into a byte buffer and only writes it to the channel
+// when the buffer is full or flush is called.
+public class BufferedSink implements OutputSink {
+
+    static final int DEFAULT_SIZE = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final byte[] buffer;
+    private int count;
+    private CharsetEncoder encoder; // only needed for non-ASCII text
+    private long written; // bytes handed to the channel so far
+    private long lines;
+
+    public BufferedSink(WritableByteChannel channel) {
+        this(channel, DEFAULT_SIZE);
+    }
+
+    public BufferedSink(WritableByteChannel channel, int size) {
+        this.channel = channel;
+        this.buffer = new byte[size];
+    }
+
+    public BufferedSink(OutputStream stream) {
+        this(Channels.newChannel(stream));
+    }
+
+    @Override
+    public synchronized void print(CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                encode(text, i);
+                return;
+            }
+            if (count == buffer.length) {
+                drain();
+            }
+            buffer[count++] = (byte) c;
+        }
+    }
+
+    @Override
+    public synchronized void println(CharSequence line) {
+        print(line);
+        if (count == buffer.length) {
+            drain();
+        }
+        buffer[count++] = '\n';
+        lines++;
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) {
+        if (length > buffer.length - count) {
+            drain();
+            if (length > buffer.length) {
+                writeFully(ByteBuffer.wrap(bytes, offset, length));
+                written += length;
+                return;
+            }
+        }
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+    }
+
+    @Override
+    public synchronized long transferFrom(FileChannel source, long position, long count) throws IOException {
+        drain(); // keep the order of what was printed before
+        long transferred = 0;
+        while (transferred < count) {
+            long n = source.transferTo(position + transferred, count - transferred, channel);
+            if (n <= 0) {
+                break; // the file got shorter
+            }
+            transferred += n;
+        }
+        written += transferred;
+        return transferred;
+    }
+
+    @Override
+    public synchronized long bytesWritten() {
+        return written + count;
+    }
+
+    @Override
+    public synchronized long linesWritten() {
+        return lines;
+    }
+
+    @Override
+    public synchronized void flush() {
+        drain();
+    }
+
+    @Override
+    public synchronized void close() {
+        drain();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Slow path for text with non-ASCII characters, from the given index to the end.
+    private void encode(CharSequence text, int from) {
+        if (encoder == null) {
+            encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        encoder.reset();
+        CharBuffer in = CharBuffer.wrap(text, from, text.length());
+
+        boolean flushing = false;
+        while (true) {
+            ByteBuffer out = ByteBuffer.wrap(buffer, count, buffer.length - count);
+            CoderResult result = flushing ? encoder.flush(out) : encoder.encode(in, out, true);
+            count = out.position();
+            if (result.isOverflow()) {
+                drain();
+            } else if (!flushing) {
+                flushing = true;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void drain() {
+        if (count > 0) {
+            writeFully(ByteBuffer.wrap(buffer, 0, count));
+            written += count;
+            count = 0;
+        }
+    }
+
+    private void writeFully(ByteBuffer bytes) {
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
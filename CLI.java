@@ -1,33 +1,80 @@
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class CLI {
 
-    Path currentDir;
-    private final Scanner scanner = new Scanner(System.in);
-    private File currentDirectory;
+    Path currentDir; // the working directory of this session, every relative name resolves against it
+    private int lastStatus;
+    private boolean exited;
+    private OutputSink out = OutputSink.console(); // where the commands of this session print
+    private static final CommandParser parser = new CommandParser(); // caches parsed lines
+    // the builtins are registered on the first command, not before the first prompt
+    private static final class Builtins {
+        static final CommandRegistry REGISTRY = builtins();
+    }
+    private static final boolean CONCURRENT_PIPES =
+            Boolean.parseBoolean(System.getProperty("cli.pipe.concurrent", "true"));
+    private final DirectoryCache listing = DirectoryCache.shared(); // sorted ls listings
+    private final ExternalSort sorter = new ExternalSort(); // spills to disk when the input is too big for memory
+    private final Jobs jobs = new Jobs(); // background jobs of this session
+    private History history; // lines typed in this session, null until used: the console's shared history
 
 
 
     public CLI()
     {
         currentDir= Paths.get("").toAbsolutePath();// Start in the current directory
-        this.currentDirectory = new File(System.getProperty("user.dir"));
-
     }
     public CLI(File currentDirectory) {
-        this.currentDirectory = currentDirectory;
+        currentDir = currentDirectory.toPath().toAbsolutePath().normalize();
     }
     public void setCurrentDirectory(File directory) {
-        this.currentDirectory = directory;
+        currentDir = directory.toPath().toAbsolutePath().normalize();
     }
     public File getCurrentDirectory() {
-        return currentDirectory;
+        return currentDir.toFile();
+    }
+    // Copy of this session for a background job: same working directory, its own output.
+    CLI copyFor(OutputSink output) {
+        CLI copy = new CLI(currentDir.toFile());
+        copy.out = output;
+        copy.history = history;
+        return copy;
+    }
+    public void setOutput(OutputSink out) {
+        this.out = out;
+    }
+    public OutputSink getOutput() {
+        return out;
+    }
+    // A history of its own, for a session that isn't the local console (see Server).
+    void setHistory(History history) {
+        this.history = history;
+    }
+    private History history() {
+        if (history == null) {
+            history = History.shared();
+        }
+        return history;
     }
 
 
@@ -37,7 +84,7 @@ public class CLI {
     // Displays the current working directory path.
     public void pwd()
     {
-        System.out.println(currentDir.toAbsolutePath()); // retrieves the absolute path of the currentDirectory.
+        out.println(currentDir.toAbsolutePath().toString()); // retrieves the absolute path of the currentDirectory.
     }
 
     //cd<directory>Change Directory
@@ -46,7 +93,8 @@ public class CLI {
     {
         if(dir.length==0)
         {
-            System.out.println("cd:missing Directory");
+            out.println("cd:missing Directory");
+            lastStatus = 1;
             return;
         }
         // Resolve the new path relative to the current directory and normalize it (clean up any redundant parts)
@@ -60,7 +108,8 @@ public class CLI {
         }
         else
         {
-            System.out.println("cd:directory does not exist");
+            out.println("cd:directory does not exist");
+            lastStatus = 1;
         }
 
     }
@@ -69,17 +118,16 @@ public class CLI {
     // Lists the non-hidden files in the current directory in alphabetical order.
     public void ls()
     {
-        File Dir=currentDir.toFile();
-        String[] files=Dir.list();
+        String[] files=listing.list(currentDir); // already sorted, shared with ls-a and ls-r
 
         if(files==null){
-            System.out.println("ls:missing Files"+currentDir);
+            out.println("ls:missing Files"+currentDir);
+            lastStatus = 1;
             return;
         }
-        Arrays.sort(files);
         for (String file : files) {
             if(!file.startsWith(".")){//checks whether the file name starts with a dot (.). In Unix-based systems (Linux, macOS), files that start with a dot are considered "hidden files."
-                System.out.println(file);
+                out.println(file);
             }
         }
 
@@ -89,16 +137,15 @@ public class CLI {
     // Lists all files in the current directory, including hidden files, in alphabetical order.
     public void lsA()
     {
-        File Dir=currentDir.toFile();
-        String[] files=Dir.list();
+        String[] files=listing.list(currentDir);
 
         if(files==null){
-            System.out.println("lsA:missing Files"+currentDir);
+            out.println("lsA:missing Files"+currentDir);
+            lastStatus = 1;
             return;
         }
-        Arrays.sort(files);
         for (String file : files) {
-            System.out.println(file); // Include hidden files
+            out.println(file); // Include hidden files
         }
     }
 
@@ -106,73 +153,183 @@ public class CLI {
     //Lists the non-hidden files in the current directory in reverse alphabetical order.
     public void lsR()
     {
-        File Dir=currentDir.toFile();
-        String[] files=Dir.list();
+        String[] files=listing.list(currentDir);
 
         if(files==null){
-            System.out.println("lsR:missing Files"+currentDir);
+            out.println("lsR:missing Files"+currentDir);
+            lastStatus = 1;
             return;
         }
 
-        Arrays.sort(files, Collections.reverseOrder());
-        for (String file : files) {
+        for (int i = files.length - 1; i >= 0; i--) { // walk the sorted listing backwards
+            String file = files[i];
             if(!file.startsWith(".")){ // Exclude hidden files
-                System.out.println(file);
+                out.println(file);
             }
         }
     }
 
+    // ls -R - paths of all non-hidden files below the current directory, relative to it,
+    // in sorted depth-first order. Hidden directories are not entered.
+    public void lsRecursive() throws IOException
+    {
+        FileWalker walker = new FileWalker();
+        walker.sorted = true;
+        walker.skipHidden = true;
+
+        try (Stream<String> files = walker.walk(currentDir, "")) {
+            files.forEach(out::println);
+        }
+    }
+
     //Mkdir
     public void mkdir(String[] directories) {
         for (String dir : directories) {
-            File directory = new File(currentDirectory, dir);
+            File directory = file(dir);
             if (!directory.exists()) {
-                if (directory.mkdir()) {
-                    System.out.println("Directory created: " + directory.getPath());
+                if (listing.create(directory, directory::mkdir)) {
+                    out.println("Directory created: " + directory.getPath());
                 } else {
-                    System.out.println("Failed to create directory: " + directory.getPath());
+                    out.println("Failed to create directory: " + directory.getPath());
+                    lastStatus = 1;
                 }
             } else {
-                System.out.println("Directory already exists: " + directory.getPath());
+                out.println("Directory already exists: " + directory.getPath());
+                lastStatus = 1;
             }
         }
     }
 
     //Rmdir
     public void rmdir(String dirName) {
-        File directory = new File(currentDirectory, dirName);
+        File directory = file(dirName);
         if (directory.exists() && directory.isDirectory()) {
-            if (directory.delete()) {
-                System.out.println("Directory removed: " + directory.getPath());
+            if (listing.delete(directory, directory::delete)) {
+                out.println("Directory removed: " + directory.getPath());
             } else {
-                System.out.println("Failed to remove directory: " + directory.getPath());
+                out.println("Failed to remove directory: " + directory.getPath());
+                lastStatus = 1;
             }
         } else {
-            System.out.println("Directory not found: " + directory.getPath());
+            out.println("Directory not found: " + directory.getPath());
+            lastStatus = 1;
+        }
+    }
+
+    // rmdir -p a/b/c - removes c, then b, then a, stopping at the first that can't be removed
+    public void rmdirParents(String dirName) {
+        for (File dir = new File(dirName); dir != null; dir = dir.getParentFile()) {
+            File directory = file(dir.getPath());
+            if (!directory.isDirectory() || !listing.delete(directory, directory::delete)) {
+                out.println("Failed to remove directory: " + directory.getPath());
+                lastStatus = 1;
+                return;
+            }
+            out.println("Directory removed: " + directory.getPath());
+        }
+    }
+
+    // rm [-r] [-n|--dry-run] [--progress] <path>... - deletes files, and whole trees with -r
+    // (see TreeDeleter). --progress prints the number of deleted entries every second.
+    public void rmTree(String[] args) throws IOException {
+        boolean recursive = false;
+        boolean dryRun = false;
+        boolean progress = false;
+        List<String> paths = new ArrayList<>();
+        for (String arg : args) {
+            switch (arg) {
+                case "-r":
+                case "-R":
+                case "-rf":
+                    recursive = true;
+                    break;
+                case "-n":
+                case "--dry-run":
+                    dryRun = true;
+                    break;
+                case "--progress":
+                    progress = true;
+                    break;
+                default:
+                    if (arg.startsWith("-")) {
+                        throw new IllegalArgumentException("rm: unknown option " + arg);
+                    }
+                    paths.add(arg);
+            }
+        }
+        if (paths.isEmpty()) {
+            out.println("Usage: rm [-r] [-n|--dry-run] [--progress] <path>...");
+            lastStatus = 1;
+            return;
+        }
+
+        TreeDeleter deleter = new TreeDeleter(dryRun);
+        boolean counting = dryRun;
+        Thread ticker = null;
+        if (progress) {
+            ticker = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(1000);
+                        out.println("rm: " + deleter.progress() + (counting ? " entries counted" : " entries deleted"));
+                        out.flush();
+                    }
+                } catch (InterruptedException e) {
+                    // done
+                }
+            }, "rm-progress");
+            ticker.setDaemon(true);
+            ticker.start();
+        }
+        try {
+            for (String path : paths) {
+                File file = file(path);
+                if (!file.exists() && !Files.isSymbolicLink(file.toPath())) {
+                    out.println("rm: " + path + ": No such file or directory");
+                    lastStatus = 1;
+                } else if (file.isDirectory() && !Files.isSymbolicLink(file.toPath()) && !recursive) {
+                    out.println("rm: " + path + ": is a directory (use -r)");
+                    lastStatus = 1;
+                } else if (dryRun) {
+                    deleter.delete(file.toPath());
+                } else {
+                    listing.delete(file, () -> {
+                        deleter.delete(file.toPath());
+                        return true;
+                    });
+                }
+            }
+        } finally {
+            if (ticker != null) {
+                ticker.interrupt();
+            }
         }
+        out.println(deleter.summary());
     }
 
     //Touch
     public void touch(String fileName) {
-        File file = new File(currentDirectory, fileName);
+        File file = file(fileName);
         try {
-            if (file.createNewFile()) {
-                System.out.println("File created: " + file.getPath());
+            if (listing.create(file, file::createNewFile)) {
+                out.println("File created: " + file.getPath());
             } else {
-                System.out.println("File already exists: " + file.getPath());
+                out.println("File already exists: " + file.getPath());
             }
         } catch (IOException e) {
-            System.out.println("Error creating file: " + file.getPath());
+            out.println("Error creating file: " + file.getPath());
+            lastStatus = 1;
         }
     }
 
     //mv
-    public void mv(String source, String destination) {
-        File sourceFile = new File(currentDirectory, source);
-        File destFile = new File(currentDirectory, destination);
+    public void mv(String source, String destination) throws IOException {
+        File sourceFile = file(source);
+        File destFile = file(destination);
 
         if (!sourceFile.exists()) {
-            System.out.println("Source not found: " + sourceFile.getPath());
+            out.println("Source not found: " + sourceFile.getPath());
+            lastStatus = 1;
             return;
         }
 
@@ -180,132 +337,541 @@ public class CLI {
             destFile = new File(destFile, sourceFile.getName());
         }
 
-        if (sourceFile.renameTo(destFile)) {
-            System.out.println("Moved/Renamed " + sourceFile.getPath() + " to " + destFile.getPath());
+        File target = destFile;
+        FileCopier[] copied = {null};
+        boolean moved = listing.move(sourceFile, target, () -> {
+            try {
+                Files.move(sourceFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                // another filesystem: copy, then delete the source once the copy is complete
+                copied[0] = new FileCopier();
+                try {
+                    copied[0].copy(sourceFile.toPath(), target.toPath());
+                } catch (IOException failure) {
+                    if (target.exists()) {
+                        new TreeDeleter(false).delete(target.toPath()); // the source is still complete, drop the partial copy
+                    }
+                    throw failure;
+                }
+                new TreeDeleter(false).delete(sourceFile.toPath());
+            } catch (IOException e) {
+                return false;
+            }
+            return true;
+        });
+        if (moved) {
+            out.println("Moved/Renamed " + sourceFile.getPath() + " to " + destFile.getPath());
+            if (copied[0] != null) {
+                out.println(copied[0].summary());
+            }
         } else {
-            System.out.println("Failed to move/rename " + sourceFile.getPath());
+            out.println("Failed to move/rename " + sourceFile.getPath());
+            lastStatus = 1;
         }
     }
 
-    public static List<String> readFile(String filePath) throws IOException {
-        List<String> words = new ArrayList<>();
+    // name relative to the session's directory (new File(dir, name) would append an absolute name to dir)
+    private File file(String name) {
+        return currentDir.resolve(name).toFile();
+    }
+
+    // cp [-r] <source> <destination> - copies a file, or a directory tree with -r.
+    // Into <destination>/<source name> when the destination is an existing directory.
+    public void cp(String[] args) throws IOException {
+        boolean recursive = args.length == 3 && (args[0].equals("-r") || args[0].equals("-R"));
+        if (args.length != 2 && !recursive) {
+            out.println("Usage: cp [-r] <source> <destination>");
+            lastStatus = 1;
+            return;
+        }
+        Path source = currentDir.resolve(args[args.length - 2]);
+        Path target = currentDir.resolve(args[args.length - 1]);
+
+        if (!Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+            out.println("Source not found: " + source);
+            lastStatus = 1;
+            return;
+        }
+        if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS) && !recursive) {
+            out.println("cp: -r not specified; omitting directory " + args[args.length - 2]);
+            lastStatus = 1;
+            return;
+        }
+        if (Files.isDirectory(target)) {
+            target = target.resolve(source.getFileName().toString());
+        }
 
-        // Read all lines from the file
-        List<String> lines = Files.readAllLines(Paths.get(filePath));
+        FileCopier copier = new FileCopier();
+        File created = target.toFile();
+        listing.create(created, () -> {
+            copier.copy(source, created.toPath());
+            return true;
+        });
+        out.println(copier.summary());
+    }
 
-        // Process each line
-        for (String line : lines) {
-            // Split each line by one or more spaces
-            String[] tokens = line.split("\\s+");
+    // Words of the file, split like line.split("\\s+") on every line (see WordTokenizer).
+    public static List<String> readFile(String filePath) throws IOException {
+        List<String> words = new ArrayList<>();
 
-            // Add each word to the words list
-            for (String token : tokens) {
-                words.add(token);
+        try (WordTokenizer tokenizer = WordTokenizer.open(Paths.get(filePath))) {
+            String word;
+            while ((word = tokenizer.next()) != null) {
+                words.add(word);
             }
         }
         return words;
     }
 
+    // Runs a command line and lets errors through to the caller (executeCommand reports them).
     public void execute(String command) throws IOException {
-        if (command.contains("|")){
-            String[] commandParts = command.split("\\|");
+        run(parser.parse(command));
+    }
+
+    private void run(ParsedLine line) throws IOException {
+        if (line.isEmpty()) {
+            return;
+        }
+        if (line.background) {
+            Jobs.Job job = jobs.start(this, line);
+            out.println("[" + job.id + "] " + job.command);
+            return;
+        }
+        if (line.stages.get(0).name.equals("time")) {
+            time(line);
+            return;
+        }
+
+        try (Metrics.Sample sample = Metrics.start(metricName(line))) {
+            run(line, sample);
+        }
+    }
+
+    // time <command line>: runs it and prints its wall time, output and allocations.
+    private void time(ParsedLine line) throws IOException {
+        String[] args = line.stages.get(0).args();
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Usage: time <command>");
+        }
+        List<ParsedLine.Stage> stages = new ArrayList<>(line.stages);
+        stages.set(0, new ParsedLine.Stage(args[0], Arrays.copyOfRange(args, 1, args.length)));
+        ParsedLine timed = new ParsedLine(line.text, stages, line.redirect, line.append, false);
 
-            pipe(commandParts);
+        Metrics.awaitAllocationCounter();
+        Metrics.Sample sample = Metrics.start(metricName(timed));
+        try {
+            run(timed, sample);
+        } finally {
+            sample.close();
+            out.println(sample.summary());
         }
-        else {
-            if (command.equals("help")) {
-                help();
+    }
+
+    // Metrics key of a line: its command names joined by |, null for unknown commands
+    // so that typos don't end up in the stats.
+    private static String metricName(ParsedLine line) {
+        StringBuilder name = new StringBuilder();
+        for (ParsedLine.Stage stage : line.stages) {
+            if (registry().command(stage.name) == null && registry().stage(stage.name) == null) {
+                return null;
             }
-            else if (command.startsWith("sort")) {
-                String[] parts = command.split(" ");
+            if (name.length() > 0) {
+                name.append('|');
+            }
+            name.append(stage.name);
+        }
+        return name.toString();
+    }
 
-                List<String> sorted = sortFile(parts[1]);
-                for (String part : sorted) {
-                    System.out.println(part);
+    // With > the output streams into a temp file that replaces the target only once the
+    // command has succeeded (see FileSink.replace), >> appends to the file as it goes.
+    private void run(ParsedLine line, Metrics.Sample sample) throws IOException {
+        OutputSink session = out;
+        FileSink redirect = null;
+        if (line.redirect != null) {
+            Path target = currentDir.resolve(line.redirect);
+            redirect = line.append ? FileSink.open(target, true) : FileSink.replace(target);
+            out = redirect;
+        }
+        long bytes = out.bytesWritten();
+        long lines = out.linesWritten();
+        boolean completed = false;
+        try {
+            dispatch(line);
+            completed = true;
+        } finally {
+            sample.written(out.bytesWritten() - bytes, out.linesWritten() - lines);
+            out = session;
+            if (redirect != null) {
+                try {
+                    if (completed) {
+                        redirect.commit();
+                    }
+                } finally {
+                    redirect.close(); // drops the temp file if the command or the commit failed
                 }
             }
-            else if (command.startsWith("cat")) {
-                String[] parts = command.split(" ");
+        }
+    }
+
+    private void dispatch(ParsedLine line) throws IOException {
+        if (line.stages.size() > 1) {
+            pipe(line.stages);
+            return;
+        }
+
+        ParsedLine.Stage stage = line.stages.get(0);
+        CommandRegistry.Command command = registry().command(stage.name);
+        if (command != null) {
+            command.run(this, stage.args());
+        } else if (registry().stage(stage.name) != null) {
+            pipe(line.stages); // a single command is just a pipeline with one stage
+        } else {
+            throw new IllegalArgumentException("Unrecognized command: " + line.text.trim());
+        }
+    }
+
+    public void pipe(String[] commands) throws IOException {
+        List<ParsedLine.Stage> stages = new ArrayList<>();
+        for (String command : commands) {
+            stages.addAll(parser.parse(command).stages);
+        }
+        pipe(stages);
+    }
+
+    // Every stage is a lazy Stream<String>: lines are pulled through the whole
+    // pipeline one at a time, so only blocking stages (sort) hold the input in memory
+    // and the first output line is printed as soon as it is available.
+    // With more than one stage every stage runs on its own thread (ConcurrentPipeline),
+    // -Dcli.pipe.concurrent=false pulls all of them on the calling thread instead.
+    void pipe(List<ParsedLine.Stage> stages) throws IOException {
+        List<CommandRegistry.PipeStage> pipeStages = new ArrayList<>();
+        for (ParsedLine.Stage stage : stages) {
+            CommandRegistry.PipeStage pipeStage = registry().stage(stage.name);
+            if (pipeStage == null) {
+                throw new IllegalArgumentException("Unrecognized command: " + stage);
+            }
+            pipeStages.add(pipeStage);
+        }
+        // a source that waits for more input (tail -f) flushes what was printed so far
+        Runnable idle = ConcurrentPipeline.onIdle(out::flush);
+        try {
+            if (stages.size() > 1 && CONCURRENT_PIPES) {
+                pipeConcurrently(stages, pipeStages);
+            } else {
+                pipeSequentially(stages, pipeStages);
+            }
+        } finally {
+            ConcurrentPipeline.onIdle(idle);
+        }
+    }
 
-                List<String> lines = cat(parts[1]);
-                for (String part : lines) {
-                    System.out.println(part);
+    private void pipeSequentially(List<ParsedLine.Stage> stages, List<CommandRegistry.PipeStage> pipeStages)
+            throws IOException {
+        Stream<String> out_in = null;
+        try {
+            for (int i = 0; i < stages.size(); i++) {
+                out_in = pipeStages.get(i).open(this, stages.get(i).args(), out_in);
+            }
+
+            Iterator<String> lines = out_in.iterator();
+            while (lines.hasNext()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("interrupted"); // kill of a background job
                 }
+                out.println(lines.next());
             }
-            else if (command.equals("exit")) {
-                exit();
+        } catch (UncheckedIOException e) {
+            // Files.lines reports read errors lazily, unwrap them for executeCommand
+            throw e.getCause();
+        } finally {
+            if (out_in != null) {
+                out_in.close(); // closes the files opened by the first stage
+            }
+        }
+    }
+
+    private void pipeConcurrently(List<ParsedLine.Stage> stages, List<CommandRegistry.PipeStage> pipeStages)
+            throws IOException {
+        List<ConcurrentPipeline.StageTask> tasks = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < stages.size(); i++) {
+            CommandRegistry.PipeStage pipeStage = pipeStages.get(i);
+            String[] args = stages.get(i).args();
+            tasks.add(input -> pipeStage.open(this, args, input));
+            names.add(stages.get(i).name);
+        }
+
+        try (ConcurrentPipeline pipeline = new ConcurrentPipeline()) {
+            try (Stream<String> output = pipeline.start(tasks, names)) {
+                Iterator<String> lines = output.iterator();
+                while (lines.hasNext()) {
+                    out.println(lines.next());
+                }
+            } catch (ConcurrentPipeline.PipelineFailed e) {
+                // reported below
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
             }
-            else {
-                throw new IllegalArgumentException("Unrecognized command: " + command);
+            pipeline.rethrow();
+        }
+    }
+
+    private Stream<String> sortStage(String[] args, Stream<String> input) throws IOException {
+        ExternalSort sortBy = sortOptions(args);
+        List<String> operands = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                operands.add(arg);
             }
         }
+        if (input != null && operands.isEmpty()) {
+            // sort has to see every line before it can emit the first one
+            return sortBy.sort(input);
+        }
+        if (input != null || operands.size() != 1) {
+            throw new IllegalArgumentException("Usage: sort [--parallel[=N]] <file>");
+        }
+        return sortBy.sort(WordTokenizer.stream(currentDir.resolve(operands.get(0))));
+    }
 
+    private Stream<String> uniqStage(String[] args, Stream<String> input) throws IOException {
+        if (input != null && args.length == 0) {
+            return uniq(input);
+        }
+        Uniq uniq = Uniq.parse(args);
+        if (input != null && uniq.operands.isEmpty()) {
+            return uniq.apply(input);
+        }
+        if (input != null || uniq.operands.size() != 1) {
+            throw new IllegalArgumentException("Usage: uniq [--global] [-c] [-d] [-u] <file>");
+        }
+        Stream<String> words = WordTokenizer.stream(currentDir.resolve(uniq.operands.get(0)));
+        // without --global only adjacent lines are compared, so the words are sorted first
+        return uniq.apply(uniq.global ? words : sorter.sort(words));
     }
-    public void pipe(String[] commands) throws IOException {
-        List<String> out_in = null;
 
-        for (String command : commands) {
-            command = command.trim();
+    private Stream<String> catStage(String[] args, Stream<String> input) throws IOException {
+        if (input != null && args.length == 0) {
+            return input;
+        }
+        if (input != null || args.length != 1) {
+            throw new IllegalArgumentException("Usage: cat <filename>");
+        }
+        return streamLines(currentDir.resolve(args[0]));
+    }
 
-            if(out_in == null){
-                out_in = runpipe(command);
+    // grep [-c] [-v] [-i] [-n] <pattern> [file...] - filters the input lines, or searches the files
+    // (relative to the current directory), several of them concurrently.
+    private Stream<String> grepStage(String[] args, Stream<String> input) throws IOException {
+        Grep grep = Grep.parse(args);
+        if (grep.files.isEmpty()) {
+            if (input == null) {
+                throw new IllegalArgumentException("Usage: grep [-c] [-v] [-i] [-n] <pattern> [file...]");
             }
-            else {
-                out_in = runpipe_with_input(command, out_in);
+            return grep.filter(input);
+        }
+        if (input != null) {
+            input.close(); // like grep, files take the place of the piped input
+        }
+        List<Path> paths = new ArrayList<>();
+        for (String name : grep.files) {
+            Path path = currentDir.resolve(name);
+            if (!Files.isRegularFile(path)) {
+                throw new IllegalArgumentException("grep: " + name + ": No such file");
+            }
+            paths.add(path);
+        }
+        return grep.search(paths);
+    }
+
+    // wc [-l] [-w] [-c] [file...] - counts the input lines, or the files (relative to the
+    // current directory).
+    private Stream<String> wcStage(String[] args, Stream<String> input) throws IOException {
+        WordCount wc = WordCount.parse(args);
+        if (wc.files.isEmpty()) {
+            if (input == null) {
+                throw new IllegalArgumentException("Usage: wc [-l] [-w] [-c] [file...]");
+            }
+            return wc.count(input);
+        }
+        if (input != null) {
+            input.close();
+        }
+        List<Path> paths = new ArrayList<>();
+        for (String name : wc.files) {
+            Path path = currentDir.resolve(name);
+            if (!Files.isRegularFile(path)) {
+                throw new IllegalArgumentException("wc: " + name + ": No such file");
             }
+            paths.add(path);
         }
+        return wc.count(paths).stream();
+    }
 
-        for (String line : out_in) {
-            System.out.println(line);
+    // head [-n N] [file] - the first N lines (10 by default). Stops reading there, in a
+    // pipe the stages before it are stopped too.
+    private Stream<String> headStage(String[] args, Stream<String> input) throws IOException {
+        long lines = 10;
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n") && i + 1 < args.length) {
+                lines = Tail.lineCount("head", args[++i]);
+            } else if (args[i].startsWith("-n")) {
+                lines = Tail.lineCount("head", args[i].substring(2));
+            } else if (args[i].startsWith("-") && args[i].length() > 1) {
+                lines = Tail.lineCount("head", args[i].substring(1));
+            } else if (file == null) {
+                file = args[i];
+            } else {
+                throw new IllegalArgumentException("Usage: head [-n N] [file]");
+            }
         }
+        if (file == null) {
+            if (input == null) {
+                throw new IllegalArgumentException("Usage: head [-n N] [file]");
+            }
+            return input.limit(lines);
+        }
+        if (input != null) {
+            input.close();
+        }
+        // only the lines printed are read (and counted)
+        return Files.lines(currentDir.resolve(file)).limit(lines).peek(line -> Metrics.read(line.length() + 1));
     }
 
-    private List<String> runpipe(String command) throws IOException {
-        String[] parts = command.split(" ");
-        ArrayList<String> cleanParts = new ArrayList<>();
-        for (String part : parts){
-            if (!Objects.equals(part, "")){
-                cleanParts.add(part);
+    // tail [-n N] [-f] [file] - the last N lines (10 by default), -f then follows the file.
+    private Stream<String> tailStage(String[] args, Stream<String> input) throws IOException {
+        Tail tail = Tail.parse(args);
+        if (tail.file == null) {
+            if (input == null || tail.follow) {
+                throw new IllegalArgumentException("Usage: tail [-n N] [-f] <file>");
             }
+            return tail.last(input);
+        }
+        if (input != null) {
+            input.close();
+        }
+        Path path = currentDir.resolve(tail.file);
+        if (!Files.isRegularFile(path)) {
+            throw new IllegalArgumentException("tail: " + tail.file + ": No such file");
         }
+        return tail.open(path);
+    }
 
-        String[] newparts = cleanParts.toArray(new String[cleanParts.size()]);
-        switch (newparts[0]){
-            case "sort":
-                return sortFile(newparts[1]);
-            case "uniq":
-                return uniq(sortFile(newparts[1]));
-            case "cat":
-                return cat(newparts[1]);
-            default:
-                throw new IllegalArgumentException("Unrecognized command: " + command);
+    // history [N] - the last N (or all) lines typed in this session and earlier ones, numbered.
+    // history -s <text> - the ones containing <text>. Both can feed a pipe (history | grep cd).
+    private Stream<String> historyStage(String[] args, Stream<String> input) {
+        if (input != null) {
+            input.close();
+            throw new IllegalArgumentException("history: does not read from a pipe");
+        }
+        History history = history();
+        if (args.length > 1 && args[0].equals("-s")) {
+            String text = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+            return Arrays.stream(history.search(text)).mapToObj(number -> historyEntry(history, number));
+        }
+        if (args.length > 1 || (args.length == 1 && args[0].startsWith("-"))) {
+            throw new IllegalArgumentException("Usage: history [N] | history -s <text>");
         }
+        int size = history.size();
+        long last = args.length == 1 ? Tail.lineCount("history", args[0]) : size;
+        return IntStream.rangeClosed((int) Math.max(1, size - last + 1), size)
+                .mapToObj(number -> historyEntry(history, number));
     }
 
-    private List<String> runpipe_with_input(String command, List<String> input){
-        String[] parts = command.split(" ");
+    // complete <partial line> - the words that can replace the last word of the line, with
+    // a / after directories. Quote the line to keep a trailing space: complete "cat ".
+    public void complete(String[] args) {
+        String line = String.join(" ", args);
+        boolean paths = !Completion.commandPosition(line);
+        for (String candidate : Completion.shared().complete(currentDir, line, registry().names())) {
+            out.println(paths && Files.isDirectory(currentDir.resolve(candidate)) ? candidate + "/" : candidate);
+        }
+    }
+
+    private static String historyEntry(History history, int number) {
+        return String.format("%5d  %s", number, history.get(number));
+    }
+
+    // find [dir...] [-name glob] [-type f|d|l] [-maxdepth n] [-mindepth n] [--sorted]
+    // Directories are relative to the current directory, the default is "."
+    private Stream<String> findStage(String[] args, Stream<String> input) throws IOException {
+        if (input != null) {
+            input.close();
+            throw new IllegalArgumentException("find: does not read from a pipe");
+        }
+        FileWalker walker = FileWalker.parse(args);
+        List<String> starts = walker.operands.isEmpty() ? Collections.singletonList(".") : walker.operands;
 
-        switch (command){
-            case "sort":
-                return sortList(input);
-            case "uniq":
-                return uniq(input);
-            default:
-                throw new RuntimeException("Unrecognized command: " + command);
+        Stream<String> found = Stream.empty();
+        for (String start : starts) {
+            Path dir = currentDir.resolve(start);
+            if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+                found.close();
+                throw new IllegalArgumentException("find: " + start + ": No such file or directory");
+            }
+            found = Stream.concat(found, walker.walk(dir, start));
         }
+        return found;
+    }
+
+    // Lazily reads the lines of a file, the stream must be closed to release the file.
+    static Stream<String> streamLines(Path file) throws IOException {
+        Stream<String> lines = Files.lines(file);
+        Metrics.read(Files.size(file));
+        return lines;
+    }
+
+    // Same words as readFile, but produced one at a time instead of loading the whole file.
+    static Stream<String> streamWords(String filename) throws IOException {
+        return WordTokenizer.stream(Paths.get(filename));
+    }
+
+    // Streaming version of uniq(List): only the previous line is remembered.
+    Stream<String> uniq(Stream<String> lines){
+        String[] prev_line = {null};
+
+        return lines.filter(line -> {
+            if (line.equals(prev_line[0])) {
+                return false;
+            }
+            prev_line[0] = line;
+            return true;
+        });
+    }
 
+    public ExternalSort getSorter() {
+        return sorter;
+    }
+
+    // Reads sort options: --parallel uses every core, --parallel=N sorts on N threads.
+    // Any other argument is left for the caller (the file name).
+    private ExternalSort sortOptions(String[] args) {
+        ExternalSort sortBy = sorter;
+        for (String arg : args) {
+            if (arg.equals("--parallel")) {
+                sortBy = sorter.withParallelism(Runtime.getRuntime().availableProcessors());
+            } else if (arg.startsWith("--parallel=")) {
+                try {
+                    sortBy = sorter.withParallelism(Integer.parseInt(arg.substring("--parallel=".length())));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("sort: invalid thread count " + arg);
+                }
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("sort: unknown option " + arg);
+            }
+        }
+        return sortBy;
     }
 
     List<String> sortFile(String filename) throws IOException {
         List<String> lines = readFile(filename);
-        Collections.sort(lines);
-
-        return lines;
+        return sorter.sortInMemory(lines);
     }
 
     public List<String> sortList(List<String> lines){
-        Collections.sort(lines);
-        return lines;
+        return sorter.sortInMemory(lines);
     }
 
     List<String> uniq(List<String> list){
@@ -323,17 +889,36 @@ public class CLI {
     public static List<String> cat(String filename) throws IOException {
         return Files.readAllLines(Paths.get(filename));
     }
+    // Zero-copy cat: hands the file to the sink without decoding it into Strings.
+    // For the console and file sinks the kernel does the copy (sendfile).
+    static long catTo(Path file, OutputSink out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = out.transferFrom(channel, 0, channel.size());
+            Metrics.read(size);
+
+            // like println, end the output with a newline so the prompt starts on its own line
+            if (size > 0) {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                channel.read(last, size - 1);
+                if (last.get(0) != '\n') {
+                    out.print("\n");
+                }
+            }
+            return size;
+        }
+    }
+
     //To Delete a File
     public boolean rm (String file_name){
-        File file = new File(currentDirectory,file_name);
-        return file.exists() && file.isFile() && file.delete();
+        File file = file(file_name);
+        return file.exists() && file.isFile() && listing.delete(file, file::delete);
         //Deleting Files: file.delete()
         // returns true if the file
         // was successfully deleted and false if not.
     }
     //cat for reading file content
     public String Cat (String file_name){
-        File file = new File(currentDirectory,file_name);
+        File file = file(file_name);
         if (file.exists() && file.isFile()){
             try{
                 return Files.readString(Path.of(file.getPath()));
@@ -344,9 +929,23 @@ public class CLI {
             return "File not found or is a directory";
         }
     }
+    //cat streaming the file content into a sink instead of building one String
+    public String Cat (String file_name, OutputSink out){
+        File file = file(file_name);
+        if (file.exists() && file.isFile()){
+            try{
+                catTo(file.toPath(), out);
+                return null;
+            } catch (IOException e) {
+                return "Error reading the File: " + e.getMessage();
+            }
+        }else{
+            return "File not found or is a directory";
+        }
+    }
     // '>' write to a File (overwrite)
     public String writeToFile(String file_name, String content){
-        File file = new File(currentDirectory, file_name);
+        File file = file(file_name);
         try(FileWriter writer = new FileWriter(file, false)){
             //set append to false->overwrite mode
             writer.write(content);
@@ -360,165 +959,425 @@ public class CLI {
             // after try. Any resource declared here (like writer) will be automatically closed once the try block finishes.
             return "file written successfully";
         }catch(IOException e){
+            lastStatus = 1;
             return "error while writting to the file"+e.getMessage();
         }
     }
     //'>>' Append to a File
     public String appendToFile (String file_name, String content){
-        File file = new File(currentDirectory, file_name);
+        File file = file(file_name);
         try(FileWriter writer = new FileWriter(file, true)){
             writer.write(content);
             //FileWriter creates the file if doesn't exist
             return "content was appended successfully";
         }catch (IOException e){
+            lastStatus = 1;
             return "error while appending to the file: "+ e.getMessage();
         }
     }
 
 
     public void executeCommand(String command) {
-        String[] cmd = command.trim().split("\\s+");
-        String mainCommand = cmd[0];
-        String[] args = Arrays.copyOfRange(cmd, 1, cmd.length);
+        ParsedLine line;
+        try {
+            line = parser.parse(command);
+        } catch (IllegalArgumentException e) {
+            lastStatus = 1;
+            out.println(e.getMessage());
+            return;
+        }
+        executeLine(line);
+    }
 
+    void executeLine(ParsedLine line) {
+        lastStatus = 0;
         try {
-            switch (mainCommand) {
-                case "pwd":
-                    pwd();
-                    break;
-                case "cd":
-                    cd(args);
-                    break;
-                case "ls":
+            run(line);
+        } catch (IOException e) {
+            lastStatus = 1;
+            out.println("An error occurred: " + e.getMessage());
+        } catch (UncheckedIOException e) {
+            // a sink or a stream that failed while the command ran (a full disk)
+            lastStatus = 1;
+            out.println("An error occurred: " + e.getCause().getMessage());
+        } catch (IllegalArgumentException e) {
+            lastStatus = 1;
+            out.println(e.getMessage());
+        }
+    }
+
+    private static CommandRegistry registry() {
+        return Builtins.REGISTRY;
+    }
+
+    // Built-in commands. Every command checks its own arguments.
+    private static CommandRegistry builtins() {
+        return new CommandRegistry()
+                .command("pwd", (cli, args) -> cli.pwd())
+                .command("cd", (cli, args) -> cli.cd(args))
+                .command("ls", (cli, args) -> {
                     if (args.length == 0) {
-                        ls();
+                        cli.ls();
+                    } else if (args.length == 1 && args[0].equals("-R")) {
+                        cli.lsRecursive();
                     } else {
-                        System.out.println("ls: invalid arguments");
+                        throw new IllegalArgumentException("ls: invalid arguments");
                     }
-                    break;
-                case "ls-a":
+                })
+                .command("ls-a", (cli, args) -> {
                     if (args.length == 0) {
-                        lsA();
+                        cli.lsA();
                     } else {
-                        System.out.println("ls-a: invalid arguments");
+                        throw new IllegalArgumentException("ls-a: invalid arguments");
                     }
-                    break;
-                case "ls-r":
+                })
+                .command("ls-r", (cli, args) -> {
                     if (args.length == 0) {
-                        lsR();
+                        cli.lsR();
                     } else {
-                        System.out.println("ls-r: invalid arguments");
+                        throw new IllegalArgumentException("ls-r: invalid arguments");
                     }
-                    break;
-                case "mkdir":
-                    mkdir(args);
-                    break;
-                case "rmdir":
-                    if (args.length == 1) {
-                        rmdir(args[0]);
+                })
+                .command("mkdir", (cli, args) -> cli.mkdir(args))
+                .command("rmdir", (cli, args) -> {
+                    boolean parents = args.length > 0 && args[0].equals("-p");
+                    if (args.length > (parents ? 1 : 0)) {
+                        for (int i = parents ? 1 : 0; i < args.length; i++) {
+                            if (parents) {
+                                cli.rmdirParents(args[i]);
+                            } else {
+                                cli.rmdir(args[i]);
+                            }
+                        }
                     } else {
-                        System.out.println("Usage: rmdir <directory>");
+                        throw new IllegalArgumentException("Usage: rmdir [-p] <directory>...");
                     }
-                    break;
-                case "touch":
+                })
+                .command("touch", (cli, args) -> {
                     if (args.length == 1) {
-                        touch(args[0]);
+                        cli.touch(args[0]);
                     } else {
-                        System.out.println("Usage: touch <filename>");
+                        throw new IllegalArgumentException("Usage: touch <filename>");
                     }
-                    break;
-                case "mv":
+                })
+                .command("mv", (cli, args) -> {
                     if (args.length == 2) {
-                        mv(args[0], args[1]);
+                        cli.mv(args[0], args[1]);
                     } else {
-                        System.out.println("Usage: mv <source> <destination>");
+                        throw new IllegalArgumentException("Usage: mv <source> <destination>");
                     }
-                    break;
-                case "Cat":
-                    if (args.length == 1) {
-                        List<String> lines = cat(args[0]);
-                        lines.forEach(System.out::println);
+                })
+                .command("cp", (cli, args) -> cli.cp(args))
+                .command("cat", CLI::catCommand)
+                .command("Cat", CLI::catCommand)
+                .command(">", (cli, args) -> {
+                    if (args.length == 2) {
+                        cli.out.println(cli.writeToFile(args[0], args[1]));
                     } else {
-                        System.out.println("Usage: cat <filename>");
+                        throw new IllegalArgumentException("Usage: > <filename> <content>");
                     }
-                    break;
-                case ">":
+                })
+                .command(">>", (cli, args) -> {
                     if (args.length == 2) {
-                        System.out.println(writeToFile(args[0], args[1]));
+                        cli.out.println(cli.appendToFile(args[0], args[1]));
                     } else {
-                        System.out.println("Usage: > <filename> <content>");
+                        throw new IllegalArgumentException("Usage: >> <filename> <content>");
                     }
-                    break;
-                case ">>":
-                    if (args.length == 2) {
-                        System.out.println(appendToFile(args[0], args[1]));
+                })
+                .command("rm", (cli, args) -> {
+                    if (args.length > 1 || args.length == 1 && args[0].startsWith("-")) {
+                        cli.rmTree(args);
+                    } else if (args.length == 1) {
+                        boolean result = cli.rm(args[0]);
+                        cli.out.println(result ? "File deleted successfully" : "File deletion failed or file not found.");
+                        if (!result) {
+                            cli.lastStatus = 1;
+                        }
                     } else {
-                        System.out.println("Usage: >> <filename> <content>");
+                        throw new IllegalArgumentException("Usage: rm <filename>");
                     }
-                    break;
-                case "rm":
-                    if (args.length == 1) {
-                        boolean result = rm(args[0]);
-                        System.out.println(result ? "File deleted successfully" : "File deletion failed or file not found.");
+                })
+                .command("jobs", (cli, args) -> {
+                    if (args.length == 0) {
+                        for (Jobs.Job job : cli.jobs.list()) {
+                            cli.out.println(job.toString());
+                        }
                     } else {
-                        System.out.println("Usage: rm <filename>");
+                        throw new IllegalArgumentException("Usage: jobs");
                     }
-                    break;
-                case "help":
-                    help();
-                    break;
-                case "exit":
-                    exit();
-                    break;
-                default:
-                    execute(command);
-            }
-        } catch (IOException e) {
-            System.out.println("An error occurred: " + e.getMessage());
-        } catch (IllegalArgumentException e) {
-            System.out.println(e.getMessage());
+                })
+                .command("wait", (cli, args) -> {
+                    List<Jobs.Job> waitFor = new ArrayList<>();
+                    for (String arg : args) {
+                        waitFor.add(cli.job("wait", arg));
+                    }
+                    if (args.length == 0) {
+                        waitFor = cli.jobs.list();
+                    }
+                    int status = 0;
+                    for (Jobs.Job job : waitFor) {
+                        status = Math.max(status, cli.jobs.await(job, cli.out));
+                    }
+                    cli.lastStatus = status;
+                })
+                .command("kill", (cli, args) -> {
+                    if (args.length == 0) {
+                        throw new IllegalArgumentException("Usage: kill <job id>...");
+                    }
+                    for (String arg : args) {
+                        cli.jobs.kill(cli.job("kill", arg), cli.out);
+                    }
+                })
+                .command("stats", (cli, args) -> {
+                    if (args.length == 0) {
+                        Metrics.printTable(cli.out);
+                    } else if (args.length == 1 && args[0].equals("--json")) {
+                        Metrics.printJson(cli.out);
+                    } else if (args.length == 1 && args[0].equals("--reset")) {
+                        Metrics.reset();
+                    } else {
+                        throw new IllegalArgumentException("Usage: stats [--json | --reset]");
+                    }
+                })
+                .command("complete", (cli, args) -> cli.complete(args))
+                .command("help", (cli, args) -> printHelp(cli.out))
+                .command("exit", (cli, args) -> cli.exit())
+                .stage("sort", (cli, args, input) -> cli.sortStage(args, input))
+                .stage("uniq", (cli, args, input) -> cli.uniqStage(args, input))
+                .stage("cat", (cli, args, input) -> cli.catStage(args, input))
+                .stage("find", (cli, args, input) -> cli.findStage(args, input))
+                .stage("grep", (cli, args, input) -> cli.grepStage(args, input))
+                .stage("wc", (cli, args, input) -> cli.wcStage(args, input))
+                .stage("head", (cli, args, input) -> cli.headStage(args, input))
+                .stage("tail", (cli, args, input) -> cli.tailStage(args, input))
+                .stage("history", (cli, args, input) -> cli.historyStage(args, input));
+    }
+
+    // cat <file> on its own: nothing downstream, so the bytes go straight from the file to the sink
+    private static void catCommand(CLI cli, String[] args) throws IOException {
+        if (args.length == 1) {
+            catTo(cli.currentDir.resolve(args[0]), cli.out);
+        } else {
+            throw new IllegalArgumentException("Usage: cat <filename>");
         }
     }
 
+    // Job by its number, written as 1 or %1
+    private Jobs.Job job(String command, String id) {
+        Jobs.Job job = null;
+        try {
+            job = jobs.get(Integer.parseInt(id.startsWith("%") ? id.substring(1) : id));
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        if (job == null) {
+            throw new IllegalArgumentException(command + ": no such job " + id);
+        }
+        return job;
+    }
+
+    // Exit status of the last executeCommand call: 0 on success, 1 if it failed.
+    public int getLastStatus() {
+        return lastStatus;
+    }
+
 
 
     public static void help () {
+        printHelp(OutputSink.console());
+        OutputSink.console().flush();
+    }
+
+    // not an overload of help(), CLI::help has to stay unambiguous
+    static void printHelp (OutputSink out) {
         // Display list of available commands
-        System.out.println("Available commands:");
-        System.out.println("    pwd           | - Print the current directory.");
-        System.out.println("    cd <dir>      | - Change directory to <dir>.");
-        System.out.println("    mkdir <dir>   | - Create a new directory named <dir>.");
-        System.out.println("    rmdir <dir>   | - Remove the directory named <dir>.");
-        System.out.println("    ls -a -r      | - List files in the current directory (-a for all files and -r for reverse).");
-        System.out.println("    touch <file>  | - Create a file named <file>.");
-        System.out.println("    mv <src> <dst>| - Move or rename file from <src> to <dst>.");
-        System.out.println("    rm <file>     | - Remove file from <file>.");
-        System.out.println("    cat <file>    | - Display the contents of a <file>.");
-        System.out.println("    > <file>      | - Redirect output to <file> (overwrite).");
-        System.out.println("    >> <file>     | - Append output to <file>.");
-        System.out.println("    |             | - Pipe output of one file to another.");
-        System.out.println("    exit          | - Exit the CLI.");
-        System.out.println("    help          | - Display this help message.");
-    }
-    public static void exit () {
-        // Exit the Command Line Interpreter
-        System.out.println("Exiting the CLI, see you later :)");
-        System.exit(0);
-    }
-    // CLI run loop
+        out.println("Available commands:");
+        out.println("    pwd           | - Print the current directory.");
+        out.println("    cd <dir>      | - Change directory to <dir>.");
+        out.println("    mkdir <dir>   | - Create a new directory named <dir>.");
+        out.println("    rmdir <dir>   | - Remove the empty directories named <dir>... (-p for their parents too).");
+        out.println("    ls -a -r      | - List files in the current directory (-a for all files and -r for reverse).");
+        out.println("    ls -R         | - List all files below the current directory.");
+        out.println("    find <dir>    | - Find files below <dir> (-name <glob>, -type f|d|l, -maxdepth <n>, --sorted).");
+        out.println("    touch <file>  | - Create a file named <file>.");
+        out.println("    mv <src> <dst>| - Move or rename file from <src> to <dst>.");
+        out.println("    cp <src> <dst>| - Copy a file (-r for directories).");
+        out.println("    rm <file>     | - Remove file from <file> (-r for directories, -n for a dry run).");
+        out.println("    cat <file>    | - Display the contents of a <file>.");
+        out.println("    grep <p> <file>| - Print the lines matching <p> (-c count, -v invert, -i ignore case, -n numbers).");
+        out.println("    wc <file>     | - Count lines, words and bytes (-l, -w, -c).");
+        out.println("    head <file>   | - Print the first lines of <file> (-n <lines>, 10 by default).");
+        out.println("    tail <file>   | - Print the last lines of <file> (-n <lines>, -f to follow it).");
+        out.println("    > <file>      | - Redirect output to <file> (overwrite).");
+        out.println("    >> <file>     | - Append output to <file>.");
+        out.println("    |             | - Pipe output of one file to another.");
+        out.println("    cmd &         | - Run cmd in the background (jobs, wait [id], kill <id>).");
+        out.println("    time <cmd>    | - Run <cmd> and print its time, output size and allocations.");
+        out.println("    stats         | - Latency percentiles and totals per command (--json, --reset).");
+        out.println("    history       | - List the commands typed so far (history <n>, history -s <text> to search).");
+        out.println("    complete <line>| - List the completions of the last word of <line> (commands, paths).");
+        out.println("    exit          | - Exit the CLI.");
+        out.println("    help          | - Display this help message.");
+    }
+    // Ends this session (the process in the interactive mode, the client's session in the server).
+    public void exit () {
+        out.println("Exiting the CLI, see you later :)");
+        out.flush();
+        exited = true;
+    }
+
+    boolean exited() {
+        return exited;
+    }
+
+    // CLI run loop, until exit or the end of the input
     public void start() {
-        Scanner scanner = new Scanner(System.in);
+        // not a Scanner: it loads regex and locale data before the first prompt
+        start(new BufferedReader(new InputStreamReader(System.in)));
+    }
 
-        while (true) {
-            System.out.print(currentDir + " $ ");
-            String input = scanner.nextLine();
+    void start(BufferedReader lines) {
+        while (!exited) {
+            jobs.reportFinished(out);
+            out.print(currentDir + " $ ");
+            out.flush(); // the output of a command is only flushed when the next prompt is shown
+            String input;
+            try {
+                input = lines.readLine();
+            } catch (IOException e) {
+                input = null; // like the end of the input (a client that went away)
+            }
+            if (input == null) {
+                break;
+            }
+            history().add(input);
             executeCommand(input);
         }
+        out.flush();
+    }
+
+    // Batch mode: runs the script's commands back to back without prompts.
+    // The console sink is only flushed at the end (or by the flush command). Empty lines and
+    // lines starting with # are skipped, exit stops the script.
+    // Returns 0 if every command succeeded, 1 otherwise.
+    public int runBatch(BufferedReader script, boolean timing) throws IOException {
+        // the management classes are only loaded for --timing
+        long startupMillis = timing ? System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime() : 0;
+        long start = System.nanoTime();
+        int commands = 0;
+        int failed = 0;
+
+        String line;
+        while ((line = script.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (line.equals("exit")) {
+                break;
+            }
+            if (line.equals("flush")) {
+                out.flush();
+                continue;
+            }
+
+            commands++;
+            try {
+                executeCommand(line);
+            } catch (RuntimeException e) {
+                lastStatus = 1;
+                out.println(line + ": " + e);
+            }
+            if (lastStatus != 0) {
+                failed++;
+            }
+        }
+        for (Jobs.Job job : jobs.list()) {
+            if (jobs.await(job, out) != 0) { // the script is over, collect what is still running
+                failed++;
+            }
+        }
+        out.flush();
+
+        if (timing) {
+            long totalNanos = System.nanoTime() - start;
+            System.err.printf("batch: %d commands, %d failed, startup %d ms, total %.1f ms, %.1f us/command%n",
+                    commands, failed, startupMillis, totalNanos / 1e6,
+                    commands == 0 ? 0.0 : totalNanos / 1e3 / commands);
+        }
+        return failed == 0 ? 0 : 1;
     }
 
+    private static final String USAGE =
+            "Usage: java CLI [-f <script> | -] [--timing] | --serve <socket> | --connect <socket>";
+
+    // java CLI                       interactive session
+    // java CLI -f script.txt [--timing] run the script in batch mode
+    // java CLI - [--timing]          batch mode reading commands from stdin
+    // java CLI --serve <socket> serve sessions to clients (see Server)
+    // java CLI --connect <socket> run a session in a server (see Client)
     public static void main(String[] args) {
+        if (args.length == 2 && args[0].equals("--connect")) {
+            System.exit(Client.run(args[1], System.console() != null, System.in, System.out));
+        }
+        if (args.length == 2 && args[0].equals("--serve")) {
+            serve(args[1]);
+            return;
+        }
         CLI cli = new CLI();
-        cli.start();
+        if (args.length == 0) {
+            cli.start();
+            System.exit(0);
+        }
+
+        String script = null;
+        boolean timing = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--timing")) {
+                timing = true;
+            } else if (args[i].equals("-f") && i + 1 < args.length) {
+                script = args[++i];
+            } else if (args[i].equals("-")) {
+                script = "-";
+            } else {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+        }
+        if (script == null) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        int status;
+        try (BufferedReader reader = script.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(script))) {
+            status = cli.runBatch(reader, timing);
+        } catch (IOException e) {
+            cli.out.flush();
+            System.err.println("Error reading the script: " + e.getMessage());
+            status = 2;
+        }
+        System.exit(status);
+    }
+
+    private static void serve(String target) {
+        try {
+            Server server = Server.open(target);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close(); // removes the socket file
+                } catch (IOException e) {
+                    // exiting anyway
+                }
+            }));
+            System.err.println("Serving sessions on " + target);
+            server.serve();
+        } catch (IOException e) {
+            System.err.println("Cannot serve on " + target + ": " + e.getMessage());
+            System.exit(2);
+        }
     }
 }
 
@@ -5,11 +5,20 @@ import org.junit.jupiter.api.*;
 //import java.io.ByteArrayOutputStream;
 import java.io.*;
 //import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 import java.io.File;
 import java.util.Scanner;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 //import static org.junit.Assert.assertFalse;
 //import static org.junit.Assert.assertTrue;
@@ -24,6 +33,7 @@ public class CLITest {
     private final Scanner scanner = new Scanner(System.in);
     private CLI interpreter;
     private Path tempFile;
+    private final MemorySink console = new MemorySink(); // what cli and interpreter print
 
 
 
@@ -36,6 +46,8 @@ public class CLITest {
 
         // Set the current directory to the temp directory for the CLI
         cli.currentDir = tempDir.toAbsolutePath();
+        // print into memory, surefire reports output on the real stdout as a corrupted channel
+        cli.setOutput(console);
     }
     @Before
     public void setUp() {
@@ -49,6 +61,7 @@ public class CLITest {
     public void afterEach() throws IOException {
         // Clean up the temporary directory after each test
         Files.walk(tempDir)
+                .sorted(Collections.reverseOrder()) // children before their directory
                 .map(Path::toFile)
                 .forEach(File::delete);
     }
@@ -79,6 +92,7 @@ public class CLITest {
         // Test the pwd command (Print Working Directory)
         cli.pwd();
         assertEquals(tempDir.toAbsolutePath().toString(), cli.currentDir.toAbsolutePath().toString());
+        assertEquals(Collections.singletonList(tempDir.toAbsolutePath().toString()), console.lines());
     }
 
     @Test
@@ -110,6 +124,7 @@ public class CLITest {
         String[] files = dir.list();
         assertNotNull(files);
         assertEquals(2, files.length);
+        assertEquals(Arrays.asList("file1.txt", "file2.txt"), console.lines());
     }
 
     @Test
@@ -125,6 +140,7 @@ public class CLITest {
         assertNotNull(files);
         assertTrue(List.of(files).contains("file1.txt"));
         assertTrue(List.of(files).contains(".hiddenfile"));
+        assertEquals(Arrays.asList(".hiddenfile", "file1.txt", "file2.txt"), console.lines());
     }
 
     @Test
@@ -134,48 +150,48 @@ public class CLITest {
         Files.createFile(tempDir.resolve("file1.txt"));
         Files.createFile(tempDir.resolve("file2.txt"));
         // Files.createFile(tempDir.resolve(".hiddenfile"));
-        // Capture the output of the lsR() method
-//        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        // Redirect System.out (standard output) to the ByteArrayOutputStream
-//        System.setOut(new PrintStream(outputStream));
         // Test reverse listing
         cli.lsR();
         // Split the captured output into lines and check the order
-//        String[] lines=outputStream.toString().split("\n");
-//        assertEquals("file2.txt", lines[0].trim());  // First file should be file2.txt
-//        assertEquals("file1.txt", lines[1].trim());  // Second file should be file1.txt
+        List<String> lines = console.lines();
+        assertEquals("file2.txt", lines.get(0));  // First file should be file2.txt
+        assertEquals("file1.txt", lines.get(1));  // Second file should be file1.txt
     }
     @Test
     void testMkdir() {
         cli.mkdir(new String[]{"newDir"});
-        File createdDir = new File(testDirectory, "newDir");
+        File createdDir = new File(cli.getCurrentDirectory(), "newDir");
         assertTrue(createdDir.exists() && createdDir.isDirectory(), "Directory should be created");
+        assertEquals(Collections.singletonList("Directory created: " + createdDir.getPath()), console.lines());
     }
 
     @Test
     void testRmdir() {
-        File dirToDelete = new File(testDirectory, "dirToDelete");
+        File dirToDelete = new File(cli.getCurrentDirectory(), "dirToDelete");
         dirToDelete.mkdir();
         cli.rmdir("dirToDelete");
         assertFalse(dirToDelete.exists(), "Directory should be deleted");
+        assertEquals(Collections.singletonList("Directory removed: " + dirToDelete.getPath()), console.lines());
     }
     @Test
     void testTouch() {
         cli.touch("newFile.txt");
-        File createdFile = new File(testDirectory, "newFile.txt");
+        File createdFile = new File(cli.getCurrentDirectory(), "newFile.txt");
         assertTrue(createdFile.exists() && createdFile.isFile(), "File should be created");
+        assertEquals(Collections.singletonList("File created: " + createdFile.getPath()), console.lines());
     }
 
     @Test
     void testMv() {
-        File sourceFile = new File(testDirectory, "sourceFile.txt");
-        File destinationFile = new File(testDirectory, "destinationFile.txt");
+        File sourceFile = new File(cli.getCurrentDirectory(), "sourceFile.txt");
+        File destinationFile = new File(cli.getCurrentDirectory(), "destinationFile.txt");
 
         try {
             assertTrue(sourceFile.createNewFile(), "Source file should be created");
             cli.mv("sourceFile.txt", "destinationFile.txt");
             assertTrue(destinationFile.exists(), "File should be moved/renamed to destination");
             assertFalse(sourceFile.exists(), "Source file should no longer exist");
+            assertTrue(console.toString().startsWith("Moved/Renamed "), console.toString());
         } catch (IOException e) {
             fail("IOException occurred during testMv");
   }
@@ -184,6 +200,7 @@ public class CLITest {
     @BeforeEach
     void setUpp() throws IOException {
         interpreter = new CLI();
+        interpreter.setOutput(console);
         tempFile = Files.createTempFile("testfile", ".txt");
     }
 
@@ -243,6 +260,7 @@ public class CLITest {
         interpreter.execute("sort " + tempFile.toString() + " | uniq");
 
         List<String> expected = Arrays.asList("apple", "banana", "orange");
+        assertEquals(expected, console.lines());
 
         List<String> result = interpreter.uniq(interpreter.sortFile(tempFile.toString()));
 
@@ -281,6 +299,7 @@ public class CLITest {
         interpreter.execute("cat " + tempFile.toString() + " | sort | uniq");
 
         List<String> expected = Arrays.asList("apple", "banana", "orange");
+        assertEquals(expected, console.lines());
 
         List<String> result = interpreter.uniq(interpreter.sortFile(tempFile.toString()));
 
@@ -331,6 +350,951 @@ public class CLITest {
         assertEquals("small steps, every day",content,"they should be equal");
     }
 
+    @Test
+    void testUniqStream() {
+        List<String> input = Arrays.asList("apple", "apple", "banana", "banana", "apple");
+        List<String> expected = Arrays.asList("apple", "banana", "apple");
+
+        List<String> result = interpreter.uniq(input.stream()).collect(Collectors.toList());
+
+        assertEquals(expected, result);
+    }
+
+    @Test
+    void testStreamWords() throws IOException {
+        String content = "apple banana\nbanana apple";
+        Files.writeString(tempFile, content);
+
+        try (Stream<String> words = CLI.streamWords(tempFile.toString())) {
+            assertEquals(CLI.readFile(tempFile.toString()), words.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void testExternalSortSpillsRuns() throws IOException {
+        List<String> input = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            input.add("line" + random.nextInt(1000));
+        }
+        List<String> expected = new ArrayList<>(input);
+        Collections.sort(expected);
+
+        // a tiny run size forces many spilled runs
+        ExternalSort sorter = new ExternalSort(1024, tempFile.getParent());
+        try (Stream<String> sorted = sorter.sort(input.stream())) {
+            assertEquals(expected, sorted.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testSortRejectsAFileAfterPipedInput() throws IOException {
+        Files.writeString(tempDir.resolve("a.txt"), "pear\napple\n");
+        Files.writeString(tempDir.resolve("b.txt"), "fig\n");
+
+        cli.execute("cat a.txt | sort --parallel=2");
+        assertEquals(Arrays.asList("apple", "pear"), console.lines());
+
+        // the piped lines would be sorted and b.txt ignored
+        assertEquals(1, cli.runBatch(new BufferedReader(new StringReader("cat a.txt | sort b.txt\n")), false));
+        assertTrue(console.toString().contains("Usage: sort [--parallel[=N]] <file>"), console.toString());
+        assertEquals(1, cli.runBatch(new BufferedReader(new StringReader("sort a.txt b.txt\n")), false));
+    }
+
+    @Test
+    void testParallelSortMatchesSequentialOrder() {
+        List<String> input = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            input.add(Integer.toString(random.nextInt(), 36));
+        }
+        List<String> expected = new ArrayList<>(input);
+        Collections.sort(expected);
+
+        ExternalSort sorter = new ExternalSort().withParallelism(4);
+        sorter.setParallelThreshold(1000);
+
+        assertEquals(expected, sorter.sortInMemory(new ArrayList<>(input)));
+    }
+
+    @Test
+    public void test_catStreamsBytes() throws IOException{
+        File testFile = new File(cli.getCurrentDirectory(), "testFile.txt");
+        try(FileWriter writer = new FileWriter(testFile)){
+            writer.write("For you a thousands times over!\n");
+        }
+        MemorySink bytes = new MemorySink();
+        String error = cli.Cat("testFile.txt", bytes);
+        testFile.delete();
+        assertNull(error, "no error expected");
+        assertEquals("For you a thousands times over!\n", bytes.toString());
+    }
+
+    @Test
+    void testUniqGlobalOptions() {
+        List<String> input = Arrays.asList("b", "a", "b", "c", "a", "b");
+
+        assertEquals(Arrays.asList("b", "a", "c"),
+                Uniq.parse(new String[]{"--global"}).apply(input.stream()).collect(Collectors.toList()));
+        assertEquals(Arrays.asList("      3 b", "      2 a", "      1 c"),
+                Uniq.parse(new String[]{"--global", "-c"}).apply(input.stream()).collect(Collectors.toList()));
+        assertEquals(Arrays.asList("b", "a"),
+                Uniq.parse(new String[]{"--global", "-d"}).apply(input.stream()).collect(Collectors.toList()));
+        assertEquals(Arrays.asList("c"),
+                Uniq.parse(new String[]{"--global", "-u"}).apply(input.stream()).collect(Collectors.toList()));
+    }
+
+    @Test
+    void testUniqAdjacentCounts() {
+        List<String> input = Arrays.asList("a", "a", "b", "a");
+
+        assertEquals(Arrays.asList("      2 a", "      1 b", "      1 a"),
+                Uniq.parse(new String[]{"-c"}).apply(input.stream()).collect(Collectors.toList()));
+        assertEquals(Arrays.asList("b", "a"),
+                Uniq.parse(new String[]{"-u"}).apply(input.stream()).collect(Collectors.toList()));
+    }
+
+    @Test
+    void testRunBatchStatus() throws IOException {
+        String script = "# comment\npwd\n\nsort\nexit\npwd\n";
+
+        int status = interpreter.runBatch(new BufferedReader(new StringReader(script)), false);
+
+        assertEquals(1, status, "sort without a file should fail the batch");
+        assertEquals(0, interpreter.runBatch(new BufferedReader(new StringReader("pwd\n")), false));
+    }
+
+    @Test
+    void testRunBatchStatusOfFailedBuiltins() throws IOException {
+        assertEquals(1, interpreter.runBatch(new BufferedReader(new StringReader("cd nope\npwd\n")), false));
+        assertTrue(console.toString().contains("cd:directory does not exist"));
+        for (String line : new String[]{"rm missing.txt", "rmdir nodir", "mkdir nodir/b/c", "touch", "ls -x"}) {
+            assertEquals(1, interpreter.runBatch(new BufferedReader(new StringReader(line + "\n")), false), line);
+        }
+        assertTrue(console.toString().contains("Usage: touch <filename>"));
+    }
+
+    @Test
+    public void testLsOutputOrder() throws IOException {
+        Files.createFile(tempDir.resolve("b.txt"));
+        Files.createFile(tempDir.resolve("a.txt"));
+        Files.createFile(tempDir.resolve(".hiddenfile"));
+
+        cli.ls();
+        assertEquals(Arrays.asList("a.txt", "b.txt"), console.lines());
+
+        console.clear();
+        cli.lsA();
+        assertEquals(Arrays.asList(".hiddenfile", "a.txt", "b.txt"), console.lines());
+
+        console.clear();
+        cli.lsR();
+        assertEquals(Arrays.asList("b.txt", "a.txt"), console.lines());
+    }
+
+    @Test
+    void testPipeOutputCapturedInSink() throws IOException {
+        Files.writeString(tempFile, "banana\napple\napple");
+
+        interpreter.execute("cat " + tempFile + " | sort | uniq");
+
+        assertEquals(Arrays.asList("apple", "banana"), console.lines());
+    }
+
+    @Test
+    public void testInteractiveSessionSurvivesAFailedRedirect() throws IOException {
+        Assumptions.assumeTrue(Files.isWritable(Paths.get("/dev/full")), "needs /dev/full");
+        Files.createFile(tempDir.resolve("a.txt"));
+
+        // every write to /dev/full fails with "No space left on device"
+        cli.start(new BufferedReader(new StringReader("ls >> /dev/full\npwd\n")));
+
+        String printed = console.toString();
+        assertTrue(printed.contains("An error occurred: No space left on device"), printed);
+        assertTrue(printed.contains(tempDir + "\n"), printed); // pwd still ran
+    }
+
+    @Test
+    public void testHelpPrintsToTheSessionOutput() throws IOException {
+        cli.execute("help");
+        assertEquals("Available commands:", console.lines().get(0));
+    }
+
+    @Test
+    void testParserPipelineAndRedirect() {
+        ParsedLine line = CommandParser.parseUncached("cat \"my file.txt\"|sort --parallel=2 | uniq -c >> out.txt");
+
+        assertEquals(3, line.stages.size());
+        assertEquals("cat", line.stages.get(0).name);
+        assertArrayEquals(new String[]{"my file.txt"}, line.stages.get(0).args());
+        assertArrayEquals(new String[]{"--parallel=2"}, line.stages.get(1).args());
+        line.stages.get(0).args()[0] = "changed"; // a cached line can't be changed by a command
+        assertArrayEquals(new String[]{"my file.txt"}, line.stages.get(0).args());
+        assertThrows(UnsupportedOperationException.class, () -> line.stages.clear());
+        assertEquals("out.txt", line.redirect);
+        assertTrue(line.append);
+    }
+
+    @Test
+    void testParserKeepsLegacyWriteCommand() {
+        ParsedLine line = CommandParser.parseUncached("> notes.txt hello");
+
+        assertEquals(1, line.stages.size());
+        assertEquals(">", line.stages.get(0).name);
+        assertArrayEquals(new String[]{"notes.txt", "hello"}, line.stages.get(0).args());
+        assertNull(line.redirect);
+        assertThrows(IllegalArgumentException.class, () -> CommandParser.parseUncached("sort | | uniq"));
+    }
+
+    @Test
+    void testParserCachesLines() {
+        CommandParser parser = new CommandParser(2);
+
+        ParsedLine first = parser.parse("ls");
+        assertSame(first, parser.parse("ls"));
+        parser.parse("pwd");
+        parser.parse("help");
+        assertEquals(2, parser.cacheSize());
+        assertNotSame(first, parser.parse("ls"));
+    }
+
+    @Test
+    void testRedirectCommandOutput() throws IOException {
+        Files.createFile(tempDir.resolve("b.txt"));
+        Files.createFile(tempDir.resolve("a.txt"));
+
+        cli.executeCommand("ls > " + tempFile);
+
+        assertEquals(Arrays.asList("a.txt", "b.txt"), Files.readAllLines(tempFile));
+    }
+
+    @Test
+    public void testLsSeesChangesAfterCaching() throws IOException {
+        CLI session = new CLI(tempDir.toFile());
+        session.setOutput(console);
+        Files.createFile(tempDir.resolve("b.txt"));
+        session.ls(); // caches the listing
+
+        session.touch("a.txt");                      // reported by the command
+        Files.createFile(tempDir.resolve("c.txt"));  // only visible through the filesystem
+        session.rm("b.txt");
+
+        console.clear();
+        session.ls();
+        assertEquals(Arrays.asList("a.txt", "c.txt"), console.lines());
+
+        console.clear();
+        session.lsR();
+        assertEquals(Arrays.asList("c.txt", "a.txt"), console.lines());
+    }
+
+    @Test
+    void testConcurrentPipelineKeepsOrderAcrossBatches() {
+        int count = ConcurrentPipeline.BATCH_SIZE * ConcurrentPipeline.QUEUE_BATCHES * 3 + 7;
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            expected.add("line " + i);
+        }
+        List<ConcurrentPipeline.StageTask> stages = Arrays.asList(
+                input -> expected.stream(),
+                input -> input.map(String::toUpperCase),
+                input -> input.map(String::toLowerCase));
+
+        try (ConcurrentPipeline pipeline = new ConcurrentPipeline();
+             Stream<String> output = pipeline.start(stages)) {
+            assertEquals(expected, output.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void testConcurrentPipelineErrorCancelsAllStages() {
+        List<ConcurrentPipeline.StageTask> stages = Arrays.asList(
+                input -> Stream.iterate(0, i -> i + 1).map(String::valueOf), // never ends on its own
+                input -> input.peek(line -> {
+                    if (line.equals("5000")) {
+                        throw new IllegalArgumentException("bad line " + line);
+                    }
+                }),
+                input -> input);
+
+        ConcurrentPipeline pipeline = new ConcurrentPipeline();
+        Stream<String> output = pipeline.start(stages);
+        assertThrows(ConcurrentPipeline.PipelineFailed.class, () -> output.forEach(line -> { }));
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class, pipeline::rethrow);
+        assertEquals("bad line 5000", error.getMessage());
+        output.close();
+    }
+
+    @Test
+    void testTokenizerMatchesRegexSplit() throws IOException {
+        StringBuilder longWord = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) {
+            longWord.append((char) ('a' + i % 26));
+        }
+        String content = "\n  lead\ttab\u000Bvt\fff  \r\n \t \r\rword\n\nlast trailing  \n"
+                + longWord + " after\r\nend";
+        Files.writeString(tempFile, content);
+
+        List<String> expected = new ArrayList<>();
+        for (String line : Files.readAllLines(tempFile)) {
+            expected.addAll(Arrays.asList(line.split("\\s+")));
+        }
+        assertEquals(expected, CLI.readFile(tempFile.toString()));
+    }
+
+    @Test
+    public void testFindFiltersAndSortedOrder() throws IOException {
+        Files.createDirectories(tempDir.resolve("src/main"));
+        Files.createDirectories(tempDir.resolve(".git"));
+        Files.createFile(tempDir.resolve("src/main/App.java"));
+        Files.createFile(tempDir.resolve("src/Util.java"));
+        Files.createFile(tempDir.resolve("src/notes.txt"));
+        Files.createFile(tempDir.resolve(".git/config"));
+        Files.createFile(tempDir.resolve("README"));
+
+        cli.execute("find . -name *.java -type f --sorted");
+        assertEquals(Arrays.asList("./src/Util.java", "./src/main/App.java"), console.lines());
+
+        console.clear();
+        cli.execute("find src -maxdepth 1 | sort");
+        assertEquals(Arrays.asList("src", "src/Util.java", "src/main", "src/notes.txt"), console.lines());
+
+        console.clear();
+        cli.execute("ls -R");
+        assertEquals(Arrays.asList("README", "src", "src/Util.java", "src/main", "src/main/App.java", "src/notes.txt"),
+                console.lines());
+    }
+
+    @Test
+    public void testInterruptedWalkIsNotTakenForItsEnd() throws IOException {
+        Files.createDirectories(tempDir.resolve("a/b"));
+        Files.createFile(tempDir.resolve("a/b/c.txt"));
+
+        try (Stream<String> paths = new FileWalker().walk(tempDir, "")) {
+            Thread.currentThread().interrupt();
+            UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> paths.collect(Collectors.toList()));
+            assertTrue(e.getCause() instanceof InterruptedIOException);
+            assertTrue(Thread.interrupted(), "the interrupt is kept");
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    void testBackgroundJobAndWait() throws IOException {
+        Files.writeString(tempFile, "pear\napple\npear");
+
+        Path sorted = Paths.get(tempFile + ".sorted");
+        interpreter.execute("cat " + tempFile + " | sort | uniq > " + sorted + " &");
+        interpreter.execute("wait 1");
+
+        List<String> lines = console.lines();
+        assertEquals("[1] cat " + tempFile + " | sort | uniq > " + sorted + " &", lines.get(0));
+        assertTrue(lines.get(1).startsWith("[1] Done"));
+        assertEquals(Arrays.asList("apple", "pear"), Files.readAllLines(sorted));
+        Files.delete(sorted);
+
+        interpreter.executeCommand("wait 1"); // already collected
+        assertEquals(1, interpreter.getLastStatus());
+    }
 
+    @Test
+    void testParserBackgroundMarker() {
+        assertTrue(CommandParser.parseUncached("sort big.txt &").background);
+        assertTrue(CommandParser.parseUncached("sort big.txt&").background);
+        assertFalse(CommandParser.parseUncached("> notes.txt a&b").background);
+        assertFalse(CommandParser.parseUncached("> notes.txt \"&\"").background);
+        assertThrows(IllegalArgumentException.class, () -> CommandParser.parseUncached("&"));
+    }
+
+    @Test
+    void testRunningJobOutputIsShownAndKeptWhenKilled() throws Exception {
+        Path log = tempDir.resolve("log.txt");
+        Files.writeString(log, "ERROR one\nok\n");
+        CLI session = new CLI(tempDir.toFile());
+        Jobs jobs = new Jobs();
+        Jobs.Job job = jobs.start(session, new CommandParser().parse("tail -f log.txt | grep ERROR &"));
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!console.toString().contains("ERROR one") && System.currentTimeMillis() < deadline) {
+            jobs.reportFinished(console); // before every prompt
+            Thread.sleep(20);
+        }
+        assertEquals(Collections.singletonList("ERROR one"), console.lines(), "shown while the job runs");
+        assertTrue(job.running());
+
+        Files.writeString(log, "ERROR two\n", StandardOpenOption.APPEND);
+        Thread.sleep(300); // picked up by the follower, not yet printed
+        jobs.kill(job, console);
+        assertFalse(job.running(), "killed jobs are reported once their thread has ended");
+        List<String> lines = console.lines();
+        assertEquals("[1] Killed   tail -f log.txt | grep ERROR &", lines.get(lines.size() - 1));
+        assertTrue(jobs.list().isEmpty());
+    }
+
+    @Test
+    void testJobOutputIsBounded() throws Exception {
+        Jobs.Output buffer = new Jobs.Output(16);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            expected.append("line ").append(i).append('\n');
+        }
+        Thread writer = new Thread(() -> {
+            try {
+                buffer.write(ByteBuffer.wrap(expected.toString().getBytes()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        writer.start();
+
+        while (writer.isAlive()) {
+            buffer.drainTo(console, false); // the writer waits for room after every 16 bytes
+        }
+        writer.join();
+        buffer.drainTo(console, false);
+        assertEquals(expected.toString(), console.toString());
+    }
+
+    @Test
+    void testTimeAndStatsJson() throws IOException {
+        Files.writeString(tempFile, "b\na\nb");
+        Metrics.reset();
+
+        interpreter.execute("time cat " + tempFile + " | sort | uniq");
+        List<String> lines = console.lines();
+        assertEquals(Arrays.asList("a", "b"), lines.subList(0, 2));
+        assertTrue(lines.get(2).startsWith("real "), lines.get(2));
+        assertTrue(lines.get(2).contains("lines 2"), lines.get(2));
+        // the stages run on threads of their own, their reads are added to the command's
+        assertTrue(lines.get(2).contains("read 5B"), lines.get(2));
+        // time waits for the allocation counter that is loaded in the background
+        assertFalse(lines.get(2).endsWith("allocated 0B"), lines.get(2));
+
+        console.clear();
+        interpreter.execute("stats --json");
+        String json = console.toString();
+        assertTrue(json.startsWith("{\"commands\":[{\"name\":\"cat|sort|uniq\",\"count\":1,"), json);
+        assertTrue(json.contains("\"bytes_read\":5"), json);
+    }
+
+    @Test
+    void testHistogramPercentiles() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(1_000_000, histogram.max());
+        assertEquals(500_000, histogram.percentile(0.5), 500_000 * 0.07);
+        assertEquals(990_000, histogram.percentile(0.99), 990_000 * 0.07);
+        for (long value : new long[]{0, 15, 16, 17, 1000, 123_456_789}) {
+            long middle = Metrics.Histogram.middle(Metrics.Histogram.index(value));
+            assertEquals(value, middle, value / 16.0 + 1);
+        }
+    }
+
+    @Test
+    void testRedirectReplacesTargetOnlyOnSuccess() throws IOException {
+        Path words = tempDir.resolve("words.txt");
+        Files.writeString(words, "pear apple\nfig");
+
+        cli.executeCommand("sort " + words + " > words.txt"); // reads the file it replaces
+        assertEquals(Arrays.asList("apple", "fig", "pear"), Files.readAllLines(words));
+
+        cli.executeCommand("sort --parallel=0 " + words + " > words.txt");
+        assertEquals(1, cli.getLastStatus());
+        assertEquals(Arrays.asList("apple", "fig", "pear"), Files.readAllLines(words));
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(Collections.singletonList(words), files.collect(Collectors.toList()), "temp file left behind");
+        }
+    }
+
+    @Test
+    public void testCpRecursiveCopiesTree() throws IOException {
+        Path source = Files.createDirectories(tempDir.resolve("src/deep/er"));
+        for (int i = 0; i < FileCopier.FILES_PER_TASK * 2 + 3; i++) {
+            Files.writeString(tempDir.resolve("src/file" + i), "content " + i);
+        }
+        Files.writeString(source.resolve("leaf.txt"), "leaf");
+        Files.createDirectory(tempDir.resolve("backup"));
+
+        cli.execute("cp -r src backup");
+
+        Path copy = tempDir.resolve("backup/src");
+        assertEquals("leaf", Files.readString(copy.resolve("deep/er/leaf.txt")));
+        assertEquals("content 42", Files.readString(copy.resolve("file42")));
+        try (Stream<Path> files = Files.walk(copy)) {
+            assertEquals(FileCopier.FILES_PER_TASK * 2 + 3 + 1 + 3, files.count()); // files, leaf, 3 directories
+        }
+        assertTrue(console.toString().startsWith("Copied 68 files, 3 directories"), console.toString());
+
+        console.clear();
+        cli.execute("cp src copy");
+        assertEquals("cp: -r not specified; omitting directory src", console.toString().trim());
+    }
 
+    @Test
+    public void testDirectoryCacheListsWhileAChangeRuns() throws Exception {
+        DirectoryCache cache = new DirectoryCache(8);
+        Files.createFile(tempDir.resolve("a.txt"));
+        assertArrayEquals(new String[]{"a.txt"}, cache.list(tempDir));
+
+        java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch(1);
+        java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        File created = tempDir.resolve("b.txt").toFile();
+        Thread slow = new Thread(() -> {
+            try {
+                cache.create(created, () -> {
+                    started.countDown();
+                    release.await(); // a long cp -r
+                    return created.createNewFile();
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        slow.start();
+        started.await();
+        assertArrayEquals(new String[]{"a.txt"}, cache.list(tempDir), "not blocked by the running change");
+
+        release.countDown();
+        slow.join();
+        assertArrayEquals(new String[]{"a.txt", "b.txt"}, cache.list(tempDir));
+    }
+
+    @Test
+    public void testRmRecursiveDryRunAndDelete() throws IOException {
+        CLI session = new CLI(tempDir.toFile());
+        Path build = Files.createDirectories(tempDir.resolve("build/classes/empty"));
+        for (int i = 0; i < TreeDeleter.ENTRIES_PER_TASK + 5; i++) {
+            Files.createFile(tempDir.resolve("build/classes/C" + i + ".class"));
+        }
+        Files.createSymbolicLink(tempDir.resolve("build/link"), tempDir.resolve("kept"));
+        Files.writeString(tempDir.resolve("kept"), "not followed");
+
+        session.setOutput(console);
+        session.execute("rm -r -n build");
+        assertEquals("Would delete 70 files and 3 directories", console.toString().trim());
+        assertTrue(Files.exists(build));
+
+        console.clear();
+        session.execute("rm -r build");
+        assertTrue(console.toString().startsWith("Deleted 73 entries"), console.toString());
+        assertFalse(Files.exists(tempDir.resolve("build")));
+        assertEquals("not followed", Files.readString(tempDir.resolve("kept")));
+    }
+
+    @Test
+    public void testRmdirParentsAndMultipleArguments() throws IOException {
+        CLI session = new CLI(tempDir.toFile());
+        Files.createDirectories(tempDir.resolve("a/b/c"));
+        Files.createDirectories(tempDir.resolve("x"));
+        Files.createDirectories(tempDir.resolve("y"));
+        session.setOutput(console);
+
+        session.execute("rmdir x y");
+        session.execute("rmdir -p a/b/c");
+
+        try (Stream<Path> left = Files.list(tempDir)) {
+            assertEquals(0, left.count());
+        }
+    }
+
+    @Test
+    public void testTreeDeleterStopsWhenInterrupted() throws IOException {
+        Path tree = tempDir.resolve("tree");
+        for (int d = 0; d < 20; d++) {
+            Path dir = Files.createDirectories(tree.resolve("d" + d));
+            for (int f = 0; f < 200; f++) {
+                Files.createFile(dir.resolve("f" + f));
+            }
+        }
+        TreeDeleter deleter = new TreeDeleter(false);
+        Thread.currentThread().interrupt(); // kill of the background job running rm -r
+        try {
+            assertThrows(InterruptedIOException.class, () -> deleter.delete(tree));
+        } finally {
+            assertTrue(Thread.interrupted(), "the interrupt is kept");
+        }
+        assertTrue(Files.isDirectory(tree), "stopped before the end");
+        assertTrue(deleter.progress() < 20 * 201, "" + deleter.progress());
+    }
+
+    @Test
+    public void testGrepFilesAndPipe() throws IOException {
+        Files.writeString(tempDir.resolve("a.txt"), "alpha\nBeta\nbeta gamma\nnaïve beta\r\nlast");
+        Files.writeString(tempDir.resolve("b.txt"), "gamma\nbeta\n");
+
+        cli.execute("grep -n beta a.txt");
+        assertEquals(Arrays.asList("3:beta gamma", "4:naïve beta"), console.lines());
+
+        console.clear();
+        cli.execute("grep -i beta a.txt b.txt");
+        assertEquals(Arrays.asList("a.txt:Beta", "a.txt:beta gamma", "a.txt:naïve beta", "b.txt:beta"), console.lines());
+
+        console.clear();
+        cli.execute("grep -cv \"^.?eta\" a.txt b.txt");
+        assertEquals(Arrays.asList("a.txt:3", "b.txt:1"), console.lines());
+
+        console.clear();
+        cli.execute("cat " + tempDir.resolve("a.txt") + " | grep -in \"a$\"");
+        assertEquals(Arrays.asList("1:alpha", "2:Beta", "3:beta gamma", "4:naïve beta"), console.lines());
+    }
+
+    @Test
+    public void testGrepIgnoreCaseInTurkishLocale() throws IOException {
+        Files.writeString(tempDir.resolve("a.txt"), "title\nother\n");
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR")); // "TITLE".toLowerCase() is "tıtle" here
+        try {
+            cli.execute("grep -i TITLE a.txt");
+        } finally {
+            Locale.setDefault(locale);
+        }
+        assertEquals(Collections.singletonList("title"), console.lines());
+    }
+
+    @Test
+    public void testGrepStreamsSeveralFilesInOrder() throws IOException {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < Grep.BATCH_SIZE * Grep.QUEUE_BATCHES * 3; i++) {
+            big.append("match ").append(i).append('\n');
+        }
+        Files.writeString(tempDir.resolve("big.txt"), big);
+        Files.writeString(tempDir.resolve("small.txt"), "match last\nother\n");
+
+        Grep grep = Grep.parse(new String[]{"match", "big.txt", "small.txt"});
+        try (Stream<String> lines = grep.search(Arrays.asList(tempDir.resolve("big.txt"), tempDir.resolve("small.txt")))) {
+            List<String> found = lines.collect(Collectors.toList());
+            assertEquals(Grep.BATCH_SIZE * Grep.QUEUE_BATCHES * 3 + 1, found.size());
+            assertEquals("big.txt:match 0", found.get(0));
+            assertEquals("small.txt:match last", found.get(found.size() - 1));
+        }
+
+        cli.execute("grep last big.txt small.txt");
+        assertEquals(Collections.singletonList("small.txt:match last"), console.lines());
+    }
+
+    @Test
+    public void testWcFilesRangesAndPipe() throws IOException {
+        Files.writeString(tempDir.resolve("a.txt"), "one two\n  three\tfour five\r\nsix");
+        Files.writeString(tempDir.resolve("b.txt"), "naïve\n");
+
+        cli.execute("wc a.txt b.txt");
+        assertEquals(Arrays.asList(" 2  6 30 a.txt", " 1  1  7 b.txt", " 3  7 37 total"), console.lines());
+
+        console.clear();
+        cli.execute("cat " + tempDir.resolve("a.txt") + " | wc -lw");
+        assertEquals(Collections.singletonList("3 6"), console.lines());
+
+        // words cut by every possible range boundary are counted once
+        String text = "ab  c\nd efg \t h\n i";
+        for (int split = 0; split <= text.length(); split++) {
+            WordCount.Counts first = WordCount.count(ByteBuffer.wrap(text.substring(0, split).getBytes()), true);
+            WordCount.Counts second = WordCount.count(ByteBuffer.wrap(text.substring(split).getBytes()), true);
+            WordCount.Counts merged = first.merge(second);
+            assertEquals(6, merged.words);
+            assertEquals(2, merged.lines);
+        }
+    }
+
+    @Test
+    public void testHeadAndTail() throws IOException {
+        Path numbers = tempDir.resolve("numbers.txt");
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i <= 50000; i++) {
+            text.append(i).append('\n');
+        }
+        Files.writeString(numbers, text);
+
+        cli.execute("tail -n 3 numbers.txt");
+        cli.execute("head -2 numbers.txt");
+        // head stops cat long before the end of the file
+        cli.execute("cat " + numbers + " | head -n 2 | tail -1");
+        assertEquals(Arrays.asList("49998", "49999", "50000", "1", "2", "2"), console.lines());
+
+        Files.writeString(tempDir.resolve("short.txt"), "a\r\nb");
+        console.clear();
+        cli.execute("tail -n 5 short.txt");
+        assertEquals(Arrays.asList("a", "b"), console.lines());
+
+        // \r alone and \r\n are line breaks too
+        Files.writeString(tempDir.resolve("cr.txt"), "1\r2\r3\r4\r");
+        Files.writeString(tempDir.resolve("crlf.txt"), "1\r\n2\r\n3\r\n");
+        console.clear();
+        cli.execute("tail -n 2 cr.txt");
+        cli.execute("tail -n 2 crlf.txt");
+        assertEquals(Arrays.asList("3", "4", "2", "3"), console.lines());
+    }
+
+    @Test
+    public void testTailFollowsAppends() throws Exception {
+        Path log = tempDir.resolve("log.txt");
+        Files.writeString(log, "old\nlast\n");
+
+        Thread follower = new Thread(() -> cli.executeCommand("tail -n 1 -f log.txt | grep -v skip"));
+        follower.start();
+        try {
+            awaitLines(console, Collections.singletonList("last"));
+            Files.writeString(log, "new\nskip\npart", StandardOpenOption.APPEND);
+            Files.writeString(log, "ial\n", StandardOpenOption.APPEND);
+            awaitLines(console, Arrays.asList("last", "new", "partial"));
+        } finally {
+            follower.interrupt();
+            follower.join(5000);
+        }
+        assertFalse(follower.isAlive());
+    }
+
+    private static void awaitLines(MemorySink output, List<String> expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!output.lines().equals(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(expected, output.lines());
+    }
+
+    @Test
+    public void testTailFollowsCarriageReturnLines() throws Exception {
+        Path log = tempDir.resolve("progress.txt");
+        Files.writeString(log, "");
+
+        Thread follower = new Thread(() -> cli.executeCommand("tail -f progress.txt"));
+        follower.start();
+        try {
+            Files.writeString(log, "a\rb\r", StandardOpenOption.APPEND);
+            awaitLines(console, Arrays.asList("a", "b"));
+            // the \n completing a \r\n split over two writes doesn't add an empty line
+            Files.writeString(log, "c\r", StandardOpenOption.APPEND);
+            awaitLines(console, Arrays.asList("a", "b", "c"));
+            Files.writeString(log, "\nd\n", StandardOpenOption.APPEND);
+            awaitLines(console, Arrays.asList("a", "b", "c", "d"));
+        } finally {
+            follower.interrupt();
+            follower.join(5000);
+        }
+        assertFalse(follower.isAlive());
+    }
+
+    @Test
+    public void testHistoryPersistsAndSearches() throws IOException {
+        Path file = tempDir.resolve("history");
+        History history = new History(file, 1000);
+        Random random = new Random(7);
+        String[] words = {"cd", "src", "cat", "notes.txt", "grep", "-n", "sort", "logs", "a", "ab"};
+        List<String> added = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            StringBuilder line = new StringBuilder(words[random.nextInt(words.length)]);
+            for (int j = random.nextInt(4); j > 0; j--) {
+                line.append(' ').append(words[random.nextInt(words.length)]);
+            }
+            added.add(line.toString());
+            history.add(line.toString());
+        }
+        history.flush();
+
+        // a new session reads the file lazily and keeps the last 1000 lines
+        History reloaded = new History(file, 1000);
+        assertEquals(1000, reloaded.size());
+        assertEquals(added.get(200), reloaded.get(1));
+        reloaded.add("cat notes.txt | sort");
+        for (String query : new String[]{"notes.txt", "cd src", "s | s", "ab", "t n", "zzz", "cat notes.txt | sort"}) {
+            List<Integer> expected = new ArrayList<>();
+            for (int number = 1; number <= reloaded.size(); number++) {
+                if (reloaded.get(number).contains(query)) {
+                    expected.add(number);
+                }
+            }
+            List<Integer> found = new ArrayList<>();
+            for (int number : reloaded.search(query)) {
+                found.add(number);
+            }
+            assertEquals(expected, found, query);
+        }
+    }
+
+    @Test
+    public void testHistoryCompactsAndKeepsUnwrittenLines() throws IOException {
+        Path file = tempDir.resolve("history");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            lines.add("line " + i);
+        }
+        Files.write(file, lines);
+
+        // more than twice the limit: the file is cut back to the lines that are kept
+        History history = new History(file, 10);
+        assertEquals(10, history.size());
+        assertEquals("line 15", history.get(1));
+        assertEquals(lines.subList(15, 25), Files.readAllLines(file));
+
+        // the file can't be written: the lines added before the first look are still listed
+        History unwritable = new History(tempDir.resolve("missing/history"), 10);
+        for (int i = 0; i < 40; i++) {
+            unwritable.add("cmd " + i);
+        }
+        assertEquals(10, unwritable.size());
+        assertEquals("cmd 30", unwritable.get(1));
+        assertEquals("cmd 39", unwritable.get(10));
+        assertFalse(Files.exists(tempDir.resolve("missing")));
+    }
+
+    @Test
+    public void testServerSessionsHaveTheirOwnHistory() throws Exception {
+        Path socket = tempDir.resolve("cli.sock");
+        try (Server server = Server.open(socket.toString())) {
+            Thread serving = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            serving.start();
+            List<String> outputs = new ArrayList<>();
+            for (String script : new String[]{"pwd\nhistory\n", "history\n"}) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                Client.run(socket.toString(), true, new ByteArrayInputStream(script.getBytes()), new PrintStream(bytes));
+                outputs.add(bytes.toString());
+            }
+            assertTrue(outputs.get(0).contains("    1  pwd"), outputs.get(0));
+            assertTrue(outputs.get(1).contains("    1  history"), outputs.get(1));
+            assertFalse(outputs.get(1).contains("pwd"), outputs.get(1));
+        }
+    }
+
+    @Test
+    public void testHistoryStaysCappedAfterLoading() throws IOException {
+        History history = new History(tempDir.resolve("history"), 8);
+        assertEquals(0, history.size());
+        for (int i = 0; i < 30; i++) {
+            history.add("cmd " + i);
+            assertTrue(history.size() <= 8);
+            // searched between adds, so the index is kept up as entries are dropped
+            int[] found = history.search("cmd " + i);
+            assertEquals(1, found.length);
+            assertEquals("cmd " + i, history.get(found[0]));
+        }
+        assertEquals(8, history.size());
+        assertEquals("cmd 22", history.get(1));
+        assertEquals("cmd 29", history.get(8));
+        assertArrayEquals(new int[]{1, 2, 3, 4, 5, 6, 7, 8}, history.search("cmd"));
+        assertArrayEquals(new int[]{7}, history.search("d 28"));
+    }
+
+    @Test
+    public void testCompletion() throws IOException {
+        Files.createDirectories(tempDir.resolve("src/main"));
+        Files.createFile(tempDir.resolve("notes.txt"));
+        Files.createFile(tempDir.resolve("now.log"));
+        Files.createFile(tempDir.resolve(".hidden"));
+
+        cli.execute("complete \"cat no\"");
+        cli.execute("complete \"cd s\"");
+        cli.execute("complete \"ls src/\"");
+        cli.execute("complete gre");
+        cli.execute("complete \"cat notes.txt | so\"");
+        cli.execute("complete \"cat .h\"");
+        assertEquals(Arrays.asList("notes.txt", "now.log", "src/", "src/main/", "grep", "sort", ".hidden"), console.lines());
+
+        // entries created meanwhile show up
+        Files.createFile(tempDir.resolve("note2"));
+        Files.createFile(tempDir.resolve("nova"));
+        console.clear();
+        cli.execute("complete \"rm no\"");
+        assertEquals(Arrays.asList("note2", "notes.txt", "nova", "now.log"), console.lines());
+    }
+
+    @Test
+    public void testCdAppliesToEveryCommand() throws IOException {
+        Files.createDirectory(tempDir.resolve("sub"));
+        cli.execute("cd sub");
+        cli.execute("touch made.txt");
+        cli.execute("mkdir inner");
+        cli.execute("sort made.txt > sorted.txt");
+        console.clear();
+        cli.execute("cat made.txt");
+        cli.execute("ls");
+
+        assertTrue(Files.isRegularFile(tempDir.resolve("sub/made.txt")));
+        assertTrue(Files.isDirectory(tempDir.resolve("sub/inner")));
+        assertTrue(Files.isRegularFile(tempDir.resolve("sub/sorted.txt")));
+        assertEquals(Arrays.asList("inner", "made.txt", "sorted.txt"), console.lines());
+    }
+
+    @Test
+    public void testServerSessionsAreIndependent() throws Exception {
+        Files.createDirectories(tempDir.resolve("one"));
+        Files.createDirectories(tempDir.resolve("two"));
+        Files.writeString(tempDir.resolve("two/words.txt"), "b a");
+        Server server = Server.open(tempDir.resolve("cli.sock").toString());
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        serving.start();
+        try {
+            List<Thread> clients = new ArrayList<>();
+            List<String> results = new ArrayList<>(Collections.nCopies(8, null));
+            for (int i = 0; i < 8; i++) {
+                int session = i;
+                String script = "cd " + tempDir.resolve(i % 2 == 0 ? "one" : "two") + "\nls\nsort words.txt\nexit\npwd\n";
+                clients.add(new Thread(() -> {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    int status = Client.run(tempDir.resolve("cli.sock").toString(), false,
+                            new ByteArrayInputStream(script.getBytes()), new PrintStream(bytes));
+                    results.set(session, status + ":" + bytes.toString().replace("\n", ","));
+                }));
+            }
+            clients.forEach(Thread::start);
+            for (Thread client : clients) {
+                client.join(10_000);
+            }
+            for (int i = 0; i < 8; i++) {
+                // sort fails where words.txt doesn't exist; exit ends the session before pwd
+                String missing = "1:An error occurred: " + tempDir.resolve("one/words.txt") + ",";
+                assertEquals(i % 2 == 0 ? missing : "0:words.txt,a,b,", results.get(i));
+            }
+        } finally {
+            server.close();
+            serving.join(5000);
+        }
+        assertFalse(Files.exists(tempDir.resolve("cli.sock")));
+    }
+
+    @Test
+    public void testServerBatchOutputIsPassedByteForByte() throws Exception {
+        byte[] content = "a\r\n\0status 7\nno line break".getBytes(StandardCharsets.ISO_8859_1);
+        Path raw = Files.write(tempDir.resolve("raw.txt"), content);
+        Path socket = tempDir.resolve("cli.sock");
+        try (Server server = Server.open(socket.toString())) {
+            Thread serving = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            serving.start();
+            assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(socket));
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int status = Client.run(socket.toString(), false,
+                    new ByteArrayInputStream(("cat " + raw + "\n").getBytes()), new PrintStream(bytes));
+            assertEquals(0, status);
+            MemorySink local = new MemorySink(); // what cat prints without the server
+            CLI.catTo(raw, local);
+            assertEquals(local.toString(), bytes.toString(StandardCharsets.ISO_8859_1));
+
+            bytes.reset();
+            status = Client.run(socket.toString(), false,
+                    new ByteArrayInputStream(("cat " + raw + "\nsort\n").getBytes()), new PrintStream(bytes));
+            assertEquals(1, status);
+            assertTrue(bytes.toString(StandardCharsets.ISO_8859_1).startsWith(new String(content, StandardCharsets.ISO_8859_1)));
+        }
+    }
 }
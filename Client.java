@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Thin client of the server mode (java Client <socket> or java CLI --connect <socket>):
+// sends its standard input to a session and prints what comes back.
+public final class Client {
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: java Client <socket path>");
+            System.exit(2);
+        }
+        System.exit(run(args[0], System.console() != null, System.in, System.out));
+    }
+
+    static int run(String target, boolean interactive, InputStream input, PrintStream output) {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(target))) {
+            String header = (interactive ? Server.INTERACTIVE : Server.BATCH) + " " + System.getProperty("user.dir") + "\n";
+            write(channel, header.getBytes(StandardCharsets.UTF_8), header.getBytes(StandardCharsets.UTF_8).length);
+
+            // written with channel.write: the streams of Channels lock the channel while a read
+            // blocks, which would keep the input from being sent
+            Thread forward = new Thread(() -> {
+                byte[] buffer = new byte[8 * 1024];
+                try {
+                    int read;
+                    while ((read = input.read(buffer)) >= 0) {
+                        write(channel, buffer, read);
+                    }
+                    channel.shutdownOutput(); // end of the script
+                } catch (IOException e) {
+                    // the session ended first
+                }
+            }, "client-input");
+            forward.setDaemon(true);
+            forward.start();
+
+            InputStream fromServer = Channels.newInputStream(channel);
+            if (interactive) {
+                fromServer.transferTo(output); // prompts aren't whole lines, copy as it comes
+                output.flush();
+                return 0;
+            }
+            // the output passes unchanged, except for the status trailer at its end
+            Trailer trailer = new Trailer(output);
+            fromServer.transferTo(trailer);
+            output.flush();
+            return trailer.status();
+        } catch (IOException e) {
+            System.err.println("Cannot connect to " + target + ": " + e.getMessage());
+            return 2;
+        }
+    }
+
+    // Passes the bytes on, holding back the last TRAILER_SIZE until the end of the stream.
+    private static final class Trailer extends OutputStream {
+        private final OutputStream out;
+        private final byte[] held = new byte[Server.TRAILER_SIZE * 2];
+        private int count;
+
+        Trailer(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (count + length <= held.length) {
+                System.arraycopy(bytes, offset, held, count, length);
+                count += length;
+                return;
+            }
+            // everything but the last TRAILER_SIZE bytes of held + bytes is output
+            int keepFromBytes = Math.min(length, Server.TRAILER_SIZE);
+            int keepFromHeld = Server.TRAILER_SIZE - keepFromBytes;
+            out.write(held, 0, count - keepFromHeld);
+            out.write(bytes, offset, length - keepFromBytes);
+            System.arraycopy(held, count - keepFromHeld, held, 0, keepFromHeld);
+            System.arraycopy(bytes, offset + length - keepFromBytes, held, keepFromHeld, keepFromBytes);
+            count = Server.TRAILER_SIZE;
+        }
+
+        // The exit status at the end of the stream; 1 if the session was cut short, whose
+        // last bytes are output then.
+        int status() throws IOException {
+            byte[] status = Server.STATUS.getBytes(StandardCharsets.ISO_8859_1);
+            int start = count - Server.TRAILER_SIZE;
+            if (start >= 0 && Arrays.equals(held, start, start + status.length, status, 0, status.length)) {
+                out.write(held, 0, start);
+                return ByteBuffer.wrap(held, start + status.length, 4).getInt();
+            }
+            out.write(held, 0, count);
+            return 1;
+        }
+    }
+
+    private static void write(SocketChannel channel, byte[] bytes, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Turns a command line into a ParsedLine in a single scan, without regular expressions.
+// Parsed lines are kept in an LRU cache so repeated lines (scripts, loops) skip parsing.
+final class CommandParser {
+
+    static final int DEFAULT_CACHE_SIZE = 512;
+
+    private final Map<String, ParsedLine> cache;
+
+    CommandParser() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    CommandParser(int cacheSize) {
+        // access order + removeEldestEntry = LRU
+        this.cache = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ParsedLine> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    ParsedLine parse(String line) {
+        synchronized (cache) {
+            ParsedLine parsed = cache.get(line);
+            if (parsed != null) {
+                return parsed;
+            }
+        }
+        ParsedLine parsed = parseUncached(line);
+        synchronized (cache) {
+            cache.put(line, parsed);
+        }
+        return parsed;
+    }
+
+    int cacheSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    static ParsedLine parseUncached(String line) {
+        List<ParsedLine.Stage> stages = new ArrayList<>();
+        List<String> words = new ArrayList<>();
+        String redirect = null;
+        boolean append = false;
+        boolean expectTarget = false;
+        boolean background = false;
+
+        StringBuilder word = new StringBuilder();
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            char c = line.charAt(i);
+
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+
+            if (c == '&' && blankFrom(line, i + 1)) {
+                background = true;
+                break;
+            }
+
+            if (c == '|') {
+                if (expectTarget || redirect != null) {
+                    throw syntaxError(line, "|");
+                }
+                stages.add(stage(line, words));
+                words.clear();
+                i++;
+                continue;
+            }
+
+            // read one word, quotes can appear anywhere inside it
+            word.setLength(0);
+            boolean quoted = false;
+            while (i < length) {
+                c = line.charAt(i);
+                if (Character.isWhitespace(c) || c == '|' || c == '&' && blankFrom(line, i + 1)) {
+                    break;
+                }
+                if (c == '"' || c == '\'') {
+                    int close = line.indexOf(c, i + 1);
+                    if (close < 0) {
+                        throw new IllegalArgumentException("syntax error: missing closing " + c);
+                    }
+                    word.append(line, i + 1, close);
+                    quoted = true;
+                    i = close + 1;
+                } else {
+                    word.append(c);
+                    i++;
+                }
+            }
+            String text = word.toString();
+
+            if (expectTarget) {
+                redirect = text;
+                expectTarget = false;
+            } else if (redirect != null) {
+                throw syntaxError(line, text);
+            } else if (!quoted && !words.isEmpty() && (text.equals(">") || text.equals(">>"))) {
+                append = text.length() == 2;
+                expectTarget = true;
+            } else {
+                words.add(text);
+            }
+        }
+
+        if (expectTarget) {
+            throw new IllegalArgumentException("syntax error: missing file name after " + (append ? ">>" : ">"));
+        }
+        if (words.isEmpty() && stages.isEmpty()) {
+            if (background) {
+                throw syntaxError(line, "&");
+            }
+            return new ParsedLine(line, Collections.emptyList(), null, false, false);
+        }
+        stages.add(stage(line, words));
+        return new ParsedLine(line, Collections.unmodifiableList(stages), redirect, append, background);
+    }
+
+    private static boolean blankFrom(String line, int from) {
+        for (int i = from; i < line.length(); i++) {
+            if (!Character.isWhitespace(line.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ParsedLine.Stage stage(String line, List<String> words) {
+        if (words.isEmpty()) {
+            throw syntaxError(line, "|");
+        }
+        return new ParsedLine.Stage(words.get(0), words.subList(1, words.size()).toArray(new String[0]));
+    }
+
+    private static IllegalArgumentException syntaxError(String line, String near) {
+        return new IllegalArgumentException("syntax error near '" + near + "': " + line.trim());
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+// Maps command names to the code that runs them, so dispatching a command is one hash lookup.
+// A command can be registered as a plain command, as a pipe stage, or both.
+final class CommandRegistry {
+
+    // A command run on its own, printing into the session's sink.
+    interface Command {
+        void run(CLI cli, String[] args) throws IOException;
+    }
+
+    // A command that can be part of a pipeline. input is null for the first stage.
+    interface PipeStage {
+        Stream<String> open(CLI cli, String[] args, Stream<String> input) throws IOException;
+    }
+
+    private final Map<String, Command> commands = new HashMap<>();
+    private final Map<String, PipeStage> stages = new HashMap<>();
+
+    CommandRegistry command(String name, Command command) {
+        commands.put(name, command);
+        return this;
+    }
+
+    CommandRegistry stage(String name, PipeStage stage) {
+        stages.put(name, stage);
+        return this;
+    }
+
+    // null when the name is unknown
+    Command command(String name) {
+        return commands.get(name);
+    }
+
+    // null when the command can't be used in a pipe
+    PipeStage stage(String name) {
+        return stages.get(name);
+    }
+
+    // sorted, for completion
+    NavigableSet<String> names() {
+        NavigableSet<String> names = new TreeSet<>(commands.keySet());
+        names.addAll(stages.keySet());
+        return Collections.unmodifiableNavigableSet(names);
+    }
+}
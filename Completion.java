@@ -0,0 +1,145 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+
+// Completes the last word of a partial command line: a command name for the first word of a
+// stage, a path otherwise, looked up in a prefix trie over the cached directory listing.
+final class Completion {
+
+    static final int MAX_DIRECTORIES = 64;
+
+    private static final Completion SHARED = new Completion(MAX_DIRECTORIES, DirectoryCache.shared());
+
+    private final Map<Path, Trie> tries;
+    private final DirectoryCache listing;
+
+    Completion(int maxDirectories, DirectoryCache listing) {
+        this.listing = listing;
+        this.tries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Trie> eldest) {
+                return size() > maxDirectories;
+            }
+        };
+    }
+
+    static Completion shared() {
+        return SHARED;
+    }
+
+    // Words that can replace the last word of line, sorted.
+    List<String> complete(Path currentDir, String line, NavigableSet<String> commands) {
+        String word = line.substring(line.lastIndexOf(' ') + 1);
+        if (commandPosition(line)) {
+            return new ArrayList<>(commands.subSet(word, true, word + Character.MAX_VALUE, false));
+        }
+        return paths(currentDir, word);
+    }
+
+    // Whether the last word of line is a command name: the first word of the line or of a
+    // pipe stage, and not a path.
+    static boolean commandPosition(String line) {
+        int start = line.lastIndexOf(' ') + 1;
+        String before = line.substring(0, start).trim();
+        return (before.isEmpty() || before.endsWith("|")) && line.indexOf('/', start) < 0;
+    }
+
+    // Entries of the word's directory whose names start with the rest of the word.
+    // Hidden entries only when the name starts with a dot.
+    List<String> paths(Path currentDir, String word) {
+        int slash = word.lastIndexOf('/');
+        String dirPart = word.substring(0, slash + 1);
+        String prefix = word.substring(slash + 1);
+        Path dir = (dirPart.isEmpty() ? currentDir : currentDir.resolve(dirPart)).toAbsolutePath().normalize();
+
+        String[] names = listing.list(dir);
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        int[] range = trie(dir, names).find(prefix);
+        List<String> candidates = new ArrayList<>(range[1] - range[0]);
+        for (int i = range[0]; i < range[1]; i++) {
+            if (!names[i].startsWith(".") || prefix.startsWith(".")) {
+                candidates.add(dirPart + names[i]);
+            }
+        }
+        return candidates;
+    }
+
+    private synchronized Trie trie(Path dir, String[] names) {
+        Trie trie = tries.get(dir);
+        if (trie == null || trie.names != names) {
+            trie = new Trie(names);
+            tries.put(dir, trie);
+        }
+        return trie;
+    }
+
+    // Prefix trie over a sorted array: the names below a node are a range of the array.
+    private static final class Trie {
+        final String[] names;
+        private final Node root;
+
+        Trie(String[] names) {
+            this.names = names;
+            this.root = new Node(0, names.length);
+        }
+
+        // [from, to) of the names that start with prefix.
+        synchronized int[] find(String prefix) {
+            Node node = root;
+            for (int depth = 0; depth < prefix.length() && node != null; depth++) {
+                node = node.child(names, depth, prefix.charAt(depth));
+            }
+            return node == null ? new int[]{0, 0} : new int[]{node.from, node.to};
+        }
+    }
+
+    private static final class Node {
+        final int from;
+        final int to;
+        private char[] keys;     // next characters, ascending; null until split
+        private Node[] children;
+
+        Node(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        // The names of this node whose character at depth is c, or null.
+        Node child(String[] names, int depth, char c) {
+            if (keys == null) {
+                split(names, depth);
+            }
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
+
+        // One pass over the range: names sorted by their prefix of length depth + 1 are
+        // grouped by the character at depth, names of length depth come first and end here.
+        private void split(String[] names, int depth) {
+            List<Node> nodes = new ArrayList<>();
+            StringBuilder chars = new StringBuilder();
+            int i = from;
+            while (i < to && names[i].length() <= depth) {
+                i++;
+            }
+            while (i < to) {
+                char c = names[i].charAt(depth);
+                int start = i;
+                while (i < to && names[i].charAt(depth) == c) {
+                    i++;
+                }
+                chars.append(c);
+                nodes.add(new Node(start, i));
+            }
+            children = nodes.toArray(new Node[0]);
+            keys = chars.toString().toCharArray();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Runs every stage of a pipeline on its own thread, connected by bounded queues of line batches.
+// The first error in any stage cancels the whole pipeline and is rethrown to the caller.
+final class ConcurrentPipeline implements AutoCloseable {
+
+    static final int BATCH_SIZE = 512;  // lines per hand-off
+    static final int QUEUE_BATCHES = 8; // batches buffered between two stages
+
+    // Opens the stream of one stage, input is null for the first stage.
+    interface StageTask {
+        Stream<String> open(Stream<String> input) throws IOException;
+    }
+
+    static final long IDLE_MILLIS = 50;   // an empty input queue for this long counts as idle
+    static final long STOP_WAIT_MILLIS = 1000; // close() waits this long for the stages to end
+
+    private static final List<String> END = new ArrayList<>(0);
+    private static final ThreadLocal<Runnable> IDLE = new ThreadLocal<>();
+
+    private final List<Stage> stages = new CopyOnWriteArrayList<>();
+    private final List<BlockingQueue<List<String>>> queues = new CopyOnWriteArrayList<>();
+    private final Set<BlockingQueue<List<String>>> closed = ConcurrentHashMap.newKeySet(); // read no more
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean cancelled;
+
+    // Starts the stages in order and returns the output of the last one.
+    // The returned stream is read on the caller's thread; closing it (or the pipeline)
+    // cancels every stage that is still running.
+    Stream<String> start(List<StageTask> stages) {
+        return start(stages, null);
+    }
+
+    // Same, and records every stage in Metrics as "stage:<name>".
+    Stream<String> start(List<StageTask> tasks, List<String> names) {
+        Metrics.Sample whole = Metrics.current();
+        BlockingQueue<List<String>> input = null;
+
+        for (int i = 0; i < tasks.size(); i++) {
+            String metric = names == null ? null : "stage:" + names.get(i);
+            BlockingQueue<List<String>> out = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+            queues.add(out);
+            Stage stage = new Stage(tasks.get(i), metric, whole, input, out);
+            stages.add(stage);
+            Threads.executor().execute(stage);
+            input = out;
+        }
+        return stream(input).onClose(this::close);
+    }
+
+    // Runs before the calling thread blocks waiting for more input, see idle().
+    // Returns the previous action so it can be restored.
+    static Runnable onIdle(Runnable action) {
+        Runnable previous = IDLE.get();
+        IDLE.set(action);
+        return previous;
+    }
+
+    // Called by a source that is about to block for a while (tail -f), and by a stage whose
+    // input queue stays empty for IDLE_MILLIS: hands the partial batch of the current stage
+    // to the next one (or flushes the output on the caller's thread), so lines don't sit
+    // in a batch that won't fill up soon.
+    static void idle() {
+        Runnable action = IDLE.get();
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    private final class Stage implements Runnable {
+        private final StageTask task;
+        private final String metric;
+        private final Metrics.Sample whole;
+        private final BlockingQueue<List<String>> in;
+        private final BlockingQueue<List<String>> out;
+        private final CountDownLatch ended = new CountDownLatch(1);
+        private List<String> batch = new ArrayList<>(BATCH_SIZE);
+        private Thread thread; // while it runs, guarded by this
+
+        Stage(StageTask task, String metric, Metrics.Sample whole,
+              BlockingQueue<List<String>> in, BlockingQueue<List<String>> out) {
+            this.task = task;
+            this.metric = metric;
+            this.whole = whole;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                thread = Thread.currentThread();
+            }
+            try {
+                if (!cancelled) {
+                    runStage();
+                }
+            } finally {
+                synchronized (this) {
+                    thread = null;
+                    Thread.interrupted(); // a late cancel must not reach the executor's next task
+                }
+                ended.countDown();
+            }
+        }
+
+        private synchronized void interrupt() {
+            if (thread != null) {
+                thread.interrupt(); // wakes a stage blocked on a full queue
+            }
+        }
+
+        private void runStage() {
+            onIdle(this::handOff);
+            Stream<String> input = null;
+            if (in != null) {
+                // a stage that stops reading early (head) stops the stage before it
+                input = stream(in).onClose(() -> {
+                    closed.add(in);
+                    in.clear();
+                });
+            }
+            try {
+                try (Metrics.Sample sample = Metrics.start(metric, whole);
+                     Stream<String> lines = task.open(input)) {
+                    Iterator<String> it = lines.iterator();
+                    while (it.hasNext() && !cancelled && !closed.contains(out)) {
+                        sample.lines++;
+                        batch.add(it.next());
+                        if (batch.size() == BATCH_SIZE) {
+                            put(batch);
+                            batch = new ArrayList<>(BATCH_SIZE);
+                        }
+                    }
+                    put(batch);
+                } // the sample is added to the whole before the next stage sees the end
+                put(END);
+            } catch (InterruptedException e) {
+                // cancelled while waiting for the next stage
+            } catch (UncheckedInterrupt e) {
+                // same, from the idle hand-off
+            } catch (Throwable e) {
+                fail(e);
+                // a stage that fails before the later ones are started isn't reached by cancel()
+                out.clear();
+                out.offer(END);
+            } finally {
+                onIdle(null);
+            }
+        }
+
+        private void handOff() {
+            if (!batch.isEmpty()) {
+                try {
+                    put(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedInterrupt();
+                }
+                batch = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+
+        private void put(List<String> lines) throws InterruptedException {
+            if ((lines == END || !lines.isEmpty()) && !closed.contains(out)) {
+                out.put(lines);
+            }
+        }
+    }
+
+    // Throws the error that stopped the pipeline, if any.
+    void rethrow() throws IOException {
+        Throwable error = failure.get();
+        if (error == null) {
+            return;
+        }
+        if (error instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) error).getCause();
+        }
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        throw new IOException(error);
+    }
+
+    // Stops every stage and waits for them to end. Safe to call more than once.
+    @Override
+    public void close() {
+        cancel();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_WAIT_MILLIS);
+        try {
+            for (Stage stage : stages) {
+                // a stage busy in code that doesn't check for interrupts is left to end on its own
+                if (!stage.ended.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Stops every stage without waiting, also from a stage's own thread.
+    private void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        for (Stage stage : stages) {
+            stage.interrupt();
+        }
+        for (BlockingQueue<List<String>> queue : queues) {
+            queue.clear();
+            queue.offer(END); // wakes stages blocked on an empty queue
+        }
+    }
+
+    private void fail(Throwable error) {
+        if (failure.compareAndSet(null, error)) {
+            cancel();
+        }
+    }
+
+    // Lines of a queue, one batch at a time. Ends at END, or with the pipeline's error.
+    private Stream<String> stream(BlockingQueue<List<String>> queue) {
+        Iterator<String> lines = new Iterator<>() {
+            private List<String> batch = new ArrayList<>(0);
+            private int index;
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                while (!done && index == batch.size()) {
+                    try {
+                        batch = queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                        if (batch == null) {
+                            idle();
+                            batch = queue.take();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        cancel();
+                        throw new UncheckedIOException(new InterruptedIOException("pipeline interrupted"));
+                    }
+                    index = 0;
+                    if (batch == END || cancelled) {
+                        done = true;
+                        batch = END;
+                        if (failure.get() != null) {
+                            throw new PipelineFailed();
+                        }
+                    }
+                }
+                return !done;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.get(index++);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(lines, Spliterator.ORDERED), false);
+    }
+
+    // Interrupted while handing off a partial batch from idle().
+    private static final class UncheckedInterrupt extends RuntimeException {
+        UncheckedInterrupt() {
+            super("interrupted", null, false, false);
+        }
+    }
+
+    // Thrown where a stage reads its input after another stage failed; the original
+    // error is reported by rethrow().
+    static final class PipelineFailed extends RuntimeException {
+        PipelineFailed() {
+            super("pipeline failed", null, false, false);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Sorted directory listings shared by ls, ls-a and ls-r (and every session), listed again
+// when the directory changes and updated in place by the file commands.
+final class DirectoryCache {
+
+    static final int MAX_DIRECTORIES = 256;
+    private static final long STALE = Long.MIN_VALUE;
+    private static final int MAX_EXPECTED_EVENTS = 1024;
+
+    private static final DirectoryCache SHARED = new DirectoryCache(MAX_DIRECTORIES);
+
+    // A change made by a command, returns false if it failed.
+    interface Change<E extends Exception> {
+        boolean run() throws E;
+    }
+
+    private static final class Listing {
+        String[] names; // sorted, replaced (never modified) when the directory changes
+        long modified;  // mtime the names correspond to, STALE to force listing again
+        WatchKey key;   // null when the directory isn't watched
+        final Set<String> expected = new HashSet<>(); // watch events of our own changes, "+name" / "-name"
+        int running;    // changes of this directory that are running
+        long started;   // changes of this directory started so far
+    }
+
+    private final Map<Path, Listing> listings;
+    private WatchService watcher;
+    private boolean watcherUnavailable;
+
+    DirectoryCache(int maxDirectories) {
+        this.listings = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+                if (size() > maxDirectories) {
+                    cancel(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    static DirectoryCache shared() {
+        return SHARED;
+    }
+
+    // Sorted names of the directory's entries, or null if it can't be listed.
+    // The returned array must not be modified.
+    synchronized String[] list(Path dir) {
+        dir = dir.toAbsolutePath().normalize();
+        applyEvents();
+
+        long modified = modified(dir);
+        Listing listing = listings.get(dir);
+        if (listing != null && listing.modified == modified) {
+            return listing.names;
+        }
+
+        String[] names = dir.toFile().list();
+        if (names == null) {
+            if (listing != null) {
+                cancel(listing);
+                listings.remove(dir);
+            }
+            return null;
+        }
+        Arrays.sort(names);
+
+        if (listing == null) {
+            listing = new Listing();
+            listing.key = watch(dir);
+            listings.put(dir, listing);
+        }
+        listing.names = names;
+        listing.modified = modified;
+        listing.expected.clear();
+        return names;
+    }
+
+    // Creates the entry (mkdir, touch, cp) and inserts it into the cached listing.
+    <E extends Exception> boolean create(File entry, Change<E> change) throws E {
+        return update(null, entry, change);
+    }
+
+    // Deletes the entry (rm, rmdir) and removes it from the cached listing.
+    <E extends Exception> boolean delete(File entry, Change<E> change) throws E {
+        return update(entry, null, change);
+    }
+
+    // Renames from into to (mv), the two can be in different directories.
+    <E extends Exception> boolean move(File from, File to, Change<E> change) throws E {
+        return update(from, to, change);
+    }
+
+    synchronized void clear() {
+        for (Listing listing : listings.values()) {
+            cancel(listing);
+        }
+        listings.clear();
+    }
+
+    // The change runs without the lock; other sessions keep listing (even the same directory)
+    // meanwhile. The listings are updated in place afterwards if they were up to date before
+    // and nothing else changed the directory in between, otherwise they are listed again.
+    private <E extends Exception> boolean update(File removed, File added, Change<E> change) throws E {
+        Pending from;
+        Pending to;
+        synchronized (this) {
+            applyEvents();
+            Path removedDir = parent(removed);
+            Path addedDir = parent(added);
+            from = removedDir == null ? null : new Pending(removedDir);
+            to = addedDir == null ? null : addedDir.equals(removedDir) ? from : new Pending(addedDir);
+            // expected before the change, so the events are known whoever reads them first
+            if (from != null) {
+                from.expect("-" + removed.getName());
+            }
+            if (to != null) {
+                to.expect("+" + added.getName());
+            }
+        }
+
+        boolean done = false;
+        try {
+            done = change.run();
+            return done;
+        } finally {
+            synchronized (this) {
+                if (from != null && done) {
+                    from.delete(removed.getName());
+                }
+                if (to != null && done) {
+                    to.insert(added.getName());
+                }
+                if (from != null) {
+                    from.finish(done);
+                }
+                if (to != null && to != from) {
+                    to.finish(done);
+                }
+            }
+        }
+    }
+
+    // A cached directory a change runs in, from before the change until after it.
+    // Only used while holding the lock.
+    private final class Pending {
+        private final Path dir;
+        private final Listing listing; // null if the directory isn't cached
+        private final boolean current; // the listing was up to date when the change started
+        private final long started;
+        private final List<String> expected = new ArrayList<>(2);
+
+        Pending(Path dir) {
+            this.dir = dir;
+            this.listing = listings.get(dir);
+            this.current = listing != null && listing.modified == modified(dir);
+            this.started = listing == null ? 0 : ++listing.started;
+            if (listing != null) {
+                listing.running++;
+            }
+        }
+
+        void expect(String event) {
+            if (listing != null) {
+                DirectoryCache.expect(listing, event);
+                expected.add(event);
+            }
+        }
+
+        void insert(String name) {
+            if (listing != null) {
+                DirectoryCache.insert(listing, name);
+            }
+        }
+
+        void delete(String name) {
+            if (listing != null) {
+                DirectoryCache.delete(listing, name);
+            }
+        }
+
+        void finish(boolean done) {
+            if (listing == null) {
+                return;
+            }
+            listing.running--;
+            if (!done) {
+                listing.expected.removeAll(expected);
+            }
+            // still cached, nothing else changed it meanwhile (no other change, no outside event)
+            boolean alone = listings.get(dir) == listing && listing.running == 0 && listing.started == started;
+            listing.modified = done && current && alone && listing.modified != STALE ? modified(dir) : STALE;
+        }
+    }
+
+    private static Path parent(File entry) {
+        if (entry == null) {
+            return null;
+        }
+        File parent = entry.getAbsoluteFile().getParentFile();
+        return parent == null ? null : parent.toPath().normalize();
+    }
+
+    private static void expect(Listing listing, String event) {
+        if (listing.key == null) {
+            return; // no watcher, no events to wait for
+        }
+        if (listing.expected.size() >= MAX_EXPECTED_EVENTS) {
+            listing.expected.clear(); // events stopped coming, start over from a fresh listing
+            listing.modified = STALE;
+            return;
+        }
+        listing.expected.add(event);
+    }
+
+    private WatchKey watch(Path dir) {
+        try {
+            if (watcher == null && !watcherUnavailable) {
+                watcher = FileSystems.getDefault().newWatchService();
+            }
+            if (watcher != null) {
+                return dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            watcherUnavailable = watcher == null; // fall back to mtime checks
+        }
+        return null;
+    }
+
+    // Reads the pending watch events without blocking. Events of changes made through
+    // this cache are expected; any other event means someone else changed the directory.
+    private void applyEvents() {
+        if (watcher == null) {
+            return;
+        }
+        try {
+            WatchKey key;
+            while ((key = watcher.poll()) != null) {
+                Path dir = ((Path) key.watchable()).toAbsolutePath().normalize();
+                Listing listing = listings.get(dir);
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (listing == null) {
+                        continue;
+                    }
+                    String change = null;
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        change = "+" + event.context();
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        change = "-" + event.context();
+                    }
+                    if (change == null || !listing.expected.remove(change)) {
+                        listing.modified = STALE; // overflow or an outside change
+                    }
+                }
+
+                if (!key.reset()) {
+                    listings.remove(dir); // the directory is gone
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            watcher = null;
+        }
+    }
+
+    private static void insert(Listing listing, String name) {
+        String[] names = listing.names;
+        int index = Arrays.binarySearch(names, name);
+        if (index >= 0) {
+            return; // already known (the command and the watcher both report it)
+        }
+        index = -index - 1;
+        String[] updated = new String[names.length + 1];
+        System.arraycopy(names, 0, updated, 0, index);
+        updated[index] = name;
+        System.arraycopy(names, index, updated, index + 1, names.length - index);
+        listing.names = updated;
+    }
+
+    private static void delete(Listing listing, String name) {
+        String[] names = listing.names;
+        int index = Arrays.binarySearch(names, name);
+        if (index < 0) {
+            return;
+        }
+        String[] updated = new String[names.length - 1];
+        System.arraycopy(names, 0, updated, 0, index);
+        System.arraycopy(names, index + 1, updated, index, names.length - index - 1);
+        listing.names = updated;
+    }
+
+    private static void cancel(Listing listing) {
+        if (listing.key != null) {
+            listing.key.cancel();
+        }
+    }
+
+    private static long modified(Path dir) {
+        try {
+            Instant time = Files.getLastModifiedTime(dir).toInstant();
+            return time.getEpochSecond() * 1_000_000_000L + time.getNano();
+        } catch (IOException e) {
+            return STALE + 1; // unreadable, never equal to a cached value
+        }
+    }
+}
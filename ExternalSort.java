@@ -0,0 +1,285 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// External merge sort used by the sort command and the sort pipe stage: sorted runs are
+// spilled to temp files and merged back with a priority queue (k-way merge).
+public class ExternalSort {
+
+    static final long DEFAULT_RUN_SIZE = 64L * 1024 * 1024; // 64 MB of lines per run
+    static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 16; // smaller runs are sorted on the calling thread
+    private static final int IO_BUFFER = 64 * 1024;
+    private static final int CHECK_INTERVAL = 4096; // lines between two interrupt checks
+
+    private long runSize;
+    private Path spillDir;
+    private int parallelThreshold;
+    private int parallelism; // 0 = use the common fork-join pool
+
+    // Defaults can be changed with -Dcli.sort.runSize=<bytes>, -Dcli.sort.spillDir=<dir>
+    // and -Dcli.sort.parallelThreshold=<lines>
+    public ExternalSort() {
+        this(Long.getLong("cli.sort.runSize", DEFAULT_RUN_SIZE),
+                Paths.get(System.getProperty("cli.sort.spillDir", System.getProperty("java.io.tmpdir"))));
+    }
+
+    public ExternalSort(long runSize, Path spillDir) {
+        setRunSize(runSize);
+        this.spillDir = spillDir;
+        this.parallelThreshold = Integer.getInteger("cli.sort.parallelThreshold", DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    // Copy of this sorter that sorts big runs on its own pool of the given size (sort --parallel=N).
+    public ExternalSort withParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("sort: --parallel needs at least one thread");
+        }
+        ExternalSort copy = new ExternalSort(runSize, spillDir);
+        copy.parallelThreshold = parallelThreshold;
+        copy.parallelism = threads;
+        return copy;
+    }
+
+    public long getRunSize() {
+        return runSize;
+    }
+
+    public void setRunSize(long runSize) {
+        if (runSize <= 0) {
+            throw new IllegalArgumentException("sort: run size must be positive");
+        }
+        this.runSize = runSize;
+    }
+
+    public Path getSpillDir() {
+        return spillDir;
+    }
+
+    public void setSpillDir(Path spillDir) {
+        this.spillDir = spillDir;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    // Sorts the list in place, in parallel once it reaches the threshold.
+    // Produces exactly the same order as Collections.sort.
+    public List<String> sortInMemory(List<String> lines) {
+        if (lines.size() < parallelThreshold || parallelism == 1) {
+            Collections.sort(lines);
+            return lines;
+        }
+
+        String[] buffer = lines.toArray(new String[0]);
+        if (parallelism == 0) {
+            Arrays.parallelSort(buffer);
+        } else {
+            // tasks forked from a worker stay in that worker's pool
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.submit(() -> Arrays.parallelSort(buffer)).join();
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        ListIterator<String> it = lines.listIterator();
+        for (String line : buffer) {
+            it.next();
+            it.set(line);
+        }
+        return lines;
+    }
+
+    // Sorts the input in natural String order (the same order as Collections.sort).
+    // The input stream is fully consumed and closed, the returned stream must be closed
+    // to delete the spilled runs.
+    public Stream<String> sort(Stream<String> input) throws IOException {
+        List<Path> runs = new ArrayList<>();
+        List<String> chunk = new ArrayList<>();
+        long chunkSize = 0;
+
+        try (input) {
+            Iterator<String> lines = input.iterator();
+            while (lines.hasNext()) {
+                String line = lines.next();
+                chunk.add(line);
+                chunkSize += estimateSize(line);
+                if (chunk.size() % CHECK_INTERVAL == 0) {
+                    checkInterrupt();
+                }
+
+                if (chunkSize >= runSize) {
+                    runs.add(spill(chunk));
+                    chunk.clear();
+                    chunkSize = 0;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            deleteRuns(runs);
+            throw e;
+        }
+
+        sortInMemory(chunk);
+        if (runs.isEmpty()) {
+            return chunk.stream(); // everything fit in memory
+        }
+        return merge(runs, chunk);
+    }
+
+    // Rough heap footprint of a line: String + byte[] headers plus the characters.
+    static long estimateSize(String line) {
+        return 40 + 2L * line.length();
+    }
+
+    private Path spill(List<String> chunk) throws IOException {
+        sortInMemory(chunk);
+
+        Path run = Files.createTempFile(spillDir, "cli-sort-", ".run");
+        try (BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(Files.newOutputStream(run), StandardCharsets.UTF_8), IO_BUFFER)) {
+            for (String line : chunk) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(run);
+            throw e;
+        }
+        return run;
+    }
+
+    private Stream<String> merge(List<Path> runs, List<String> lastChunk) throws IOException {
+        List<BufferedReader> readers = new ArrayList<>();
+        PriorityQueue<RunCursor> heap = new PriorityQueue<>(runs.size() + 1);
+
+        try {
+            for (Path run : runs) {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(Files.newInputStream(run), StandardCharsets.UTF_8), IO_BUFFER);
+                readers.add(reader);
+                RunCursor cursor = new RunCursor(reader::readLine);
+                if (cursor.advance()) {
+                    heap.add(cursor);
+                }
+            }
+        } catch (IOException e) {
+            closeAll(readers);
+            deleteRuns(runs);
+            throw e;
+        }
+
+        // the last chunk never went to disk, merge it straight from memory
+        Iterator<String> memory = lastChunk.iterator();
+        RunCursor memoryCursor = new RunCursor(() -> memory.hasNext() ? memory.next() : null);
+        if (memoryCursor.advance()) {
+            heap.add(memoryCursor);
+        }
+
+        Iterator<String> merged = new Iterator<>() {
+            private int count;
+
+            @Override
+            public boolean hasNext() {
+                return !heap.isEmpty();
+            }
+
+            @Override
+            public String next() {
+                RunCursor smallest = heap.poll();
+                if (smallest == null) {
+                    throw new NoSuchElementException();
+                }
+                String line = smallest.current;
+                try {
+                    if (++count % CHECK_INTERVAL == 0) {
+                        checkInterrupt();
+                    }
+                    if (smallest.advance()) {
+                        heap.add(smallest);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return line;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED), false)
+                .onClose(() -> {
+                    closeAll(readers);
+                    deleteRuns(runs);
+                });
+    }
+
+    private static void checkInterrupt() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("sort interrupted");
+        }
+    }
+
+    private static void closeAll(List<BufferedReader> readers) {
+        for (BufferedReader reader : readers) {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+                // nothing useful to do, the run file is deleted next
+            }
+        }
+    }
+
+    private static void deleteRuns(List<Path> runs) {
+        for (Path run : runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException ignored) {
+                // leftover temp files are not worth failing the command for
+            }
+        }
+    }
+
+    private interface LineSource {
+        String next() throws IOException;
+    }
+
+    // Head of one sorted run inside the merge heap.
+    private static final class RunCursor implements Comparable<RunCursor> {
+        private final LineSource source;
+        private String current;
+
+        RunCursor(LineSource source) {
+            this.source = source;
+        }
+
+        boolean advance() throws IOException {
+            current = source.next();
+            return current != null;
+        }
+
+        @Override
+        public int compareTo(RunCursor other) {
+            return current.compareTo(other.current);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Copies files and directory trees for cp and for mv across filesystems, contents with
+// FileChannel.transferTo and trees on a fork-join pool (-Dcli.cp.threads).
+final class FileCopier {
+
+    static final int FILES_PER_TASK = 32;
+
+    private static ForkJoinPool pool;
+
+    private final AtomicInteger files = new AtomicInteger();
+    private final AtomicInteger directories = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicReference<IOException> firstFailure = new AtomicReference<>();
+    private volatile boolean cancelled; // the calling thread was interrupted
+    private long nanos;
+
+    int files() {
+        return files.get();
+    }
+
+    int directories() {
+        return directories.get();
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    // Copies a file, a link or (recursively) a directory to target, which must not exist
+    // unless source is a file (then it is overwritten).
+    void copy(Path source, Path target) throws IOException {
+        long start = System.nanoTime();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attributes.isDirectory()) {
+                if (target.toAbsolutePath().normalize().startsWith(source.toAbsolutePath().normalize())) {
+                    throw new IOException("cannot copy a directory into itself: " + source + " -> " + target);
+                }
+                run(new CopyDirectory(source, target));
+            } else {
+                if (Files.exists(target) && Files.isSameFile(source, target)) {
+                    throw new FileAlreadyExistsException(target.toString(), null, "same file as " + source);
+                }
+                copyEntry(source, target, attributes);
+            }
+        } finally {
+            nanos = System.nanoTime() - start;
+        }
+
+        IOException failure = firstFailure.get();
+        if (failure != null) {
+            int more = failures.get() - 1;
+            throw more == 0 ? failure : new IOException(failure.getMessage() + " (and " + more + " more errors)", failure);
+        }
+    }
+
+    // Runs the tree's task and waits for it, like pool().invoke but interruptible.
+    private void run(RecursiveAction task) throws IOException {
+        pool().execute(task);
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            cancelled = true;
+            task.quietlyJoin(); // the workers stop after their current file
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("cp interrupted after " + files() + " files");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // "Copied 1200 files, 31 directories (56.7 MB) in 0.31 s: 3871 files/s, 182.9 MB/s"
+    String summary() {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        return String.format("Copied %d files, %d directories (%s) in %.2f s: %.0f files/s, %.1f MB/s",
+                files(), directories(), Metrics.size(bytes()), seconds,
+                files() / seconds, bytes() / seconds / (1024 * 1024));
+    }
+
+    private final class CopyDirectory extends RecursiveAction {
+        private final Path source;
+        private final Path target;
+
+        CopyDirectory(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            List<RecursiveAction> tasks = new ArrayList<>();
+            List<Path> slice = new ArrayList<>();
+            try {
+                Files.createDirectory(target);
+                directories.incrementAndGet();
+
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(source)) {
+                    for (Path entry : entries) {
+                        if (cancelled) {
+                            return;
+                        }
+                        Path copy = target.resolve(entry.getFileName().toString());
+                        if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                            tasks.add(new CopyDirectory(entry, copy));
+                        } else {
+                            slice.add(entry);
+                            if (slice.size() == FILES_PER_TASK) {
+                                tasks.add(new CopyFiles(slice, target));
+                                slice = new ArrayList<>();
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+            if (!slice.isEmpty()) {
+                tasks.add(new CopyFiles(slice, target));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private final class CopyFiles extends RecursiveAction {
+        private final List<Path> sources;
+        private final Path targetDir;
+
+        CopyFiles(List<Path> sources, Path targetDir) {
+            this.sources = sources;
+            this.targetDir = targetDir;
+        }
+
+        @Override
+        protected void compute() {
+            for (Path source : sources) {
+                if (cancelled) {
+                    return;
+                }
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    copyEntry(source, targetDir.resolve(source.getFileName().toString()), attributes);
+                } catch (IOException | UncheckedIOException e) {
+                    fail(e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause() : (IOException) e);
+                }
+            }
+        }
+    }
+
+    private void copyEntry(Path source, Path target, BasicFileAttributes attributes) throws IOException {
+        if (attributes.isSymbolicLink()) {
+            Files.createSymbolicLink(target, Files.readSymbolicLink(source));
+        } else if (attributes.isRegularFile()) {
+            bytes.addAndGet(copyFile(source, target));
+        } else {
+            throw new IOException("not a regular file: " + source);
+        }
+        files.incrementAndGet();
+    }
+
+    // Copies the contents with transferTo and gives the copy the source's permissions.
+    static long copyFile(Path source, Path target) throws IOException {
+        long copied = 0;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            while (copied < size) {
+                long n = in.transferTo(copied, size - copied, out);
+                if (n <= 0) {
+                    break; // the file got shorter
+                }
+                copied += n;
+            }
+        }
+        try {
+            Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(source));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX filesystem
+        }
+        return copied;
+    }
+
+    private void fail(IOException e) {
+        failures.incrementAndGet();
+        firstFailure.compareAndSet(null, e);
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            pool = new ForkJoinPool(Integer.getInteger("cli.cp.threads", Math.min(16, 2 * cores)));
+        }
+        return pool;
+    }
+}
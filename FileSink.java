@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Buffered sink writing directly into a file channel. Copies from other files
+// (cat) are done by the kernel with FileChannel.transferTo.
+public class FileSink extends BufferedSink {
+
+    static final int FILE_BUFFER_SIZE = 256 * 1024;
+
+    private final Path temp;   // file being written by replace(), null when writing in place
+    private final Path target; // file the temp file replaces on commit
+    private boolean committed;
+
+    private FileSink(FileChannel channel, Path temp, Path target) {
+        super(channel, FILE_BUFFER_SIZE);
+        this.temp = temp;
+        this.target = target;
+    }
+
+    // Opens the file for writing, either truncating it or appending to it.
+    public static FileSink open(Path file, boolean append) throws IOException {
+        FileChannel channel = append
+                ? FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+                : FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new FileSink(channel, null, file);
+    }
+
+    // For cmd > file: writes into a temp file next to the target that replaces it on commit,
+    // in one atomic rename. Until then the target keeps its old content, and if the command
+    // fails (close without commit) it is left untouched. The command can also read the
+    // file it is replacing (sort file > file).
+    public static FileSink replace(Path file) throws IOException {
+        Path target = file.toAbsolutePath();
+        if (Files.isSymbolicLink(target)) {
+            target = target.toRealPath(); // write through the link, like a shell
+        }
+        Path dir = target.getParent();
+        while (true) {
+            Path temp = dir.resolve("." + target.getFileName() + "."
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                // CREATE_NEW instead of createTempFile: the file gets the usual permissions, not 0600
+                FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                return new FileSink(channel, temp, target);
+            } catch (FileAlreadyExistsException e) {
+                // name taken, try another one
+            }
+        }
+    }
+
+    // Ends a successful write: the output is complete, put it in place.
+    public synchronized void commit() throws IOException {
+        super.close();
+        committed = true;
+        if (temp == null) {
+            return;
+        }
+        try {
+            if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                // the new content keeps the permissions of the file it replaces
+                Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+            }
+        } catch (UnsupportedOperationException | IOException e) {
+            // not a POSIX filesystem, or not ours: the temp file's permissions are fine too
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    // Without commit, a replacing sink drops what was written and the target stays as it was.
+    @Override
+    public synchronized void close() {
+        if (committed) {
+            return;
+        }
+        try {
+            super.close();
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // a leftover hidden temp file is not worth hiding the command's error for
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Recursive directory walk used by find and ls -R, one fork-join task per directory.
+// Results are streamed as they are found; --sorted gives the order of a sequential walk.
+final class FileWalker {
+
+    private static final int QUEUE_BATCHES = 64;
+    private static final List<String> END = new ArrayList<>(0);
+
+    private static ForkJoinPool pool;
+
+    PathMatcher name;
+    char type;            // 0 = any
+    int maxDepth = Integer.MAX_VALUE;
+    int minDepth;
+    boolean sorted;
+    boolean skipHidden;   // ls -R: hidden entries are neither reported nor entered
+    final List<String> operands = new ArrayList<>(); // start directories
+
+    private volatile boolean cancelled;
+
+    static FileWalker parse(String[] args) {
+        FileWalker walker = new FileWalker();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-name":
+                    walker.name = FileSystems.getDefault().getPathMatcher("glob:" + value(args, ++i, arg));
+                    break;
+                case "-type":
+                    String type = value(args, ++i, arg);
+                    if (!type.equals("f") && !type.equals("d") && !type.equals("l")) {
+                        throw new IllegalArgumentException("find: unknown type " + type);
+                    }
+                    walker.type = type.charAt(0);
+                    break;
+                case "-maxdepth":
+                    walker.maxDepth = depth(value(args, ++i, arg), arg);
+                    break;
+                case "-mindepth":
+                    walker.minDepth = depth(value(args, ++i, arg), arg);
+                    break;
+                case "--sorted":
+                    walker.sorted = true;
+                    break;
+                default:
+                    if (arg.startsWith("-")) {
+                        throw new IllegalArgumentException("find: unknown option " + arg);
+                    }
+                    walker.operands.add(arg);
+            }
+        }
+        return walker;
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("find: " + option + " needs a value");
+        }
+        return args[index];
+    }
+
+    private static int depth(String value, String option) {
+        try {
+            int depth = Integer.parseInt(value);
+            if (depth >= 0) {
+                return depth;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("find: invalid " + option + " " + value);
+    }
+
+    // Paths below start (start itself included, like find), written as prefix + "/" + name...
+    // An empty prefix gives paths relative to start. The stream must be closed to stop the
+    // walk early.
+    Stream<String> walk(Path start, String prefix) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(start, BasicFileAttributes.class);
+        ForkJoinPool workers = pool();
+
+        if (sorted) {
+            List<String> found = new ArrayList<>();
+            if (!prefix.isEmpty() && matches(start, attributes, 0)) {
+                found.add(prefix);
+            }
+            if (attributes.isDirectory() && maxDepth > 0) {
+                found.addAll(workers.invoke(new SortedWalk(start, prefix, 0)));
+            }
+            return found.stream();
+        }
+
+        BlockingQueue<List<String>> results = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        workers.execute(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                try {
+                    if (!prefix.isEmpty() && matches(start, attributes, 0)) {
+                        emit(results, Collections.singletonList(prefix));
+                    }
+                    if (attributes.isDirectory() && maxDepth > 0) {
+                        new Walk(start, prefix, 0, results).invoke();
+                    }
+                } finally {
+                    emit(results, END);
+                }
+            }
+        });
+        return stream(results).onClose(() -> {
+            cancelled = true;
+            results.clear(); // unblocks workers waiting for room
+        });
+    }
+
+    // Lists one directory, reports its matching entries and walks its subdirectories.
+    private final class Walk extends RecursiveAction {
+        private final Path dir;
+        private final String display;
+        private final int depth;
+        private final BlockingQueue<List<String>> results;
+
+        Walk(Path dir, String display, int depth, BlockingQueue<List<String>> results) {
+            this.dir = dir;
+            this.display = display;
+            this.depth = depth;
+            this.results = results;
+        }
+
+        @Override
+        protected void compute() {
+            List<String> found = new ArrayList<>();
+            List<Walk> subdirectories = new ArrayList<>();
+
+            for (Entry entry : list(dir, display, depth + 1)) {
+                if (entry.matches) {
+                    found.add(entry.display);
+                }
+                if (entry.descend) {
+                    subdirectories.add(new Walk(entry.path, entry.display, depth + 1, results));
+                }
+            }
+            if (!found.isEmpty()) {
+                emit(results, found);
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    // Same walk, but every task returns the results of its subtree in sorted depth-first order.
+    private final class SortedWalk extends RecursiveTask<List<String>> {
+        private final Path dir;
+        private final String display;
+        private final int depth;
+
+        SortedWalk(Path dir, String display, int depth) {
+            this.dir = dir;
+            this.display = display;
+            this.depth = depth;
+        }
+
+        @Override
+        protected List<String> compute() {
+            List<Entry> entries = list(dir, display, depth + 1);
+            entries.sort((a, b) -> a.name.compareTo(b.name));
+
+            List<SortedWalk> subdirectories = new ArrayList<>();
+            for (Entry entry : entries) {
+                if (entry.descend) {
+                    SortedWalk walk = new SortedWalk(entry.path, entry.display, depth + 1);
+                    walk.fork();
+                    subdirectories.add(walk);
+                }
+            }
+
+            List<String> found = new ArrayList<>();
+            Iterator<SortedWalk> walks = subdirectories.iterator();
+            for (Entry entry : entries) {
+                if (entry.matches) {
+                    found.add(entry.display);
+                }
+                if (entry.descend) {
+                    found.addAll(walks.next().join());
+                }
+            }
+            return found;
+        }
+    }
+
+    private static final class Entry {
+        String name;
+        String display;
+        Path path;
+        boolean matches;
+        boolean descend;
+    }
+
+    // Entries of dir, depth is theirs. Directories that can't be read are skipped.
+    private List<Entry> list(Path dir, String display, int depth) {
+        List<Entry> entries = new ArrayList<>();
+        if (cancelled) {
+            return entries;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (skipHidden && name.startsWith(".")) {
+                    continue;
+                }
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    continue; // removed while listing
+                }
+                Entry entry = new Entry();
+                entry.name = name;
+                entry.display = display.isEmpty() || display.endsWith("/") ? display + name : display + "/" + name;
+                entry.path = path;
+                entry.matches = matches(path, attributes, depth);
+                entry.descend = attributes.isDirectory() && depth < maxDepth;
+                entries.add(entry);
+            }
+        } catch (IOException | SecurityException e) {
+            // unreadable directory, keep walking the rest of the tree
+        }
+        return entries;
+    }
+
+    private boolean matches(Path path, BasicFileAttributes attributes, int depth) {
+        if (depth < minDepth) {
+            return false;
+        }
+        if (type == 'f' && !attributes.isRegularFile()
+                || type == 'd' && !attributes.isDirectory()
+                || type == 'l' && !attributes.isSymbolicLink()) {
+            return false;
+        }
+        Path fileName = path.getFileName();
+        return name == null || fileName != null && name.matches(fileName);
+    }
+
+    private void emit(BlockingQueue<List<String>> results, List<String> batch) {
+        try {
+            while (!results.offer(batch, 50, TimeUnit.MILLISECONDS)) {
+                if (cancelled) {
+                    return; // nobody reads the results any more
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Stream<String> stream(BlockingQueue<List<String>> results) {
+        Iterator<String> lines = new Iterator<>() {
+            private List<String> batch = new ArrayList<>(0);
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                while (batch != END && index == batch.size()) {
+                    try {
+                        batch = results.take();
+                    } catch (InterruptedException e) {
+                        // not the end of the walk: a caller must not take what was read for all of it
+                        Thread.currentThread().interrupt();
+                        throw new UncheckedIOException(new InterruptedIOException("find interrupted"));
+                    }
+                    index = 0;
+                }
+                return batch != END;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.get(index++);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(lines, Spliterator.ORDERED), false);
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            pool = new ForkJoinPool(Integer.getInteger("cli.find.threads", 2 * cores));
+        }
+        return pool;
+    }
+}
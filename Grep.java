@@ -0,0 +1,548 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// grep [-c] [-v] [-i] [-n] <pattern> [file...], standalone or as a pipe stage.
+// Literal patterns are searched with Boyer-Moore-Horspool over memory-mapped files.
+final class Grep {
+
+    static final int WINDOW = 1 << 30; // bytes mapped at a time
+    private static final int MAX_WINDOW = Integer.MAX_VALUE - 8;
+    private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    boolean count;
+    boolean invert;
+    boolean ignoreCase;
+    boolean lineNumbers;
+    String pattern;
+    final List<String> files = new ArrayList<>();
+
+    private byte[] literal; // pattern bytes (lower case with -i), null when it is a regex
+    private int[] skip;     // Horspool shift for every byte value
+    private Pattern regex;  // for regexes, and for literals matched against Strings
+
+    static Grep parse(String[] args) {
+        Grep grep = new Grep();
+        boolean options = true;
+        for (String arg : args) {
+            if (options && arg.equals("--")) {
+                options = false;
+            } else if (options && arg.length() > 1 && arg.startsWith("-") && grep.pattern == null) {
+                for (int i = 1; i < arg.length(); i++) {
+                    switch (arg.charAt(i)) {
+                        case 'c':
+                            grep.count = true;
+                            break;
+                        case 'v':
+                            grep.invert = true;
+                            break;
+                        case 'i':
+                            grep.ignoreCase = true;
+                            break;
+                        case 'n':
+                            grep.lineNumbers = true;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("grep: unknown option -" + arg.charAt(i));
+                    }
+                }
+            } else if (grep.pattern == null) {
+                grep.pattern = arg;
+            } else {
+                grep.files.add(arg);
+            }
+        }
+        if (grep.pattern == null) {
+            throw new IllegalArgumentException("Usage: grep [-c] [-v] [-i] [-n] <pattern> [file...]");
+        }
+        grep.compile();
+        return grep;
+    }
+
+    boolean literal() {
+        return literal != null;
+    }
+
+    private void compile() {
+        boolean plain = true;
+        for (int i = 0; i < pattern.length(); i++) {
+            if (METACHARACTERS.indexOf(pattern.charAt(i)) >= 0) {
+                plain = false;
+                break;
+            }
+        }
+        int flags = ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0;
+        if (!plain) {
+            regex = Pattern.compile(pattern, flags);
+            return;
+        }
+        regex = Pattern.compile(pattern, flags | Pattern.LITERAL);
+
+        // byte search folds ASCII only, non-ASCII patterns with -i go through the regex
+        if (ignoreCase && !pattern.chars().allMatch(c -> c < 0x80)) {
+            return;
+        }
+        literal = (ignoreCase ? pattern.toLowerCase(Locale.ROOT) : pattern).getBytes(StandardCharsets.UTF_8);
+        skip = new int[256];
+        Arrays.fill(skip, Math.max(1, literal.length));
+        for (int i = 0; i < literal.length - 1; i++) {
+            skip[literal[i] & 0xff] = literal.length - 1 - i;
+        }
+    }
+
+    // Pipe stage: filters the input lines.
+    Stream<String> filter(Stream<String> input) {
+        Matcher matcher = regex.matcher("");
+        if (count) {
+            Iterator<String> total = new Iterator<>() {
+                private boolean done;
+
+                @Override
+                public boolean hasNext() {
+                    return !done;
+                }
+
+                @Override
+                public String next() {
+                    if (done) {
+                        throw new NoSuchElementException();
+                    }
+                    done = true;
+                    return String.valueOf(input.filter(line -> matches(matcher, line) != invert).count());
+                }
+            };
+            return stream(total).onClose(input::close);
+        }
+        long[] number = {0};
+        return input.map(line -> {
+            number[0]++;
+            if (matches(matcher, line) == invert) {
+                return null;
+            }
+            return lineNumbers ? number[0] + ":" + line : line;
+        }).filter(line -> line != null);
+    }
+
+    private boolean matches(Matcher matcher, String line) {
+        if (literal != null && !ignoreCase) {
+            return line.contains(pattern);
+        }
+        return matcher.reset(line).find();
+    }
+
+    // Standalone: searches the files, which are resolved by the caller; lines are prefixed
+    // with the names as given.
+    Stream<String> search(List<Path> paths) throws IOException {
+        if (paths.size() == 1) {
+            FileSearch search = new FileSearch(paths.get(0), null);
+            return stream(search).onClose(search::close);
+        }
+
+        // a bounded number of files ahead of the one being printed are searched in the background
+        int ahead = Math.max(2, Runtime.getRuntime().availableProcessors());
+        Deque<Background> running = new ArrayDeque<>();
+        Iterator<Path> pending = paths.iterator();
+        Iterator<String> names = files.iterator();
+        Metrics.Sample whole = Metrics.current();
+
+        Iterator<String> lines = new Iterator<>() {
+            private Iterator<String> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    while (running.size() < ahead && pending.hasNext()) {
+                        Background search = new Background(pending.next(), names.next(), whole);
+                        search.future = Threads.executor().submit(search);
+                        running.add(search);
+                    }
+                    if (running.isEmpty()) {
+                        return false;
+                    }
+                    List<String> batch = running.peek().take();
+                    if (batch == END) {
+                        running.poll();
+                    } else {
+                        current = batch.iterator();
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+        return stream(lines).onClose(() -> running.forEach(search -> search.future.cancel(true)));
+    }
+
+    static final int BATCH_SIZE = 512;   // lines per hand-off from a background search
+    static final int QUEUE_BATCHES = 4;  // batches a background search may get ahead
+    private static final List<String> END = new ArrayList<>(0);
+
+    // One file searched on another thread. Its lines are handed over in batches through a
+    // bounded queue, so a file with many matches waits for the printing instead of filling
+    // the heap, and the first lines are printed before the file is done.
+    private final class Background implements Runnable {
+        private final Path path;
+        private final String name;
+        private final Metrics.Sample whole;
+        private final BlockingQueue<List<String>> batches = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        private volatile Throwable error;
+        Future<?> future;
+
+        Background(Path path, String name, Metrics.Sample whole) {
+            this.path = path;
+            this.name = name;
+            this.whole = whole;
+        }
+
+        @Override
+        public void run() {
+            Metrics.Sample part = Metrics.start(null, whole);
+            try (FileSearch search = new FileSearch(path, name)) {
+                List<String> batch = new ArrayList<>(BATCH_SIZE);
+                while (search.hasNext()) {
+                    batch.add(search.next());
+                    if (batch.size() == BATCH_SIZE) {
+                        batches.put(batch);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                batches.put(batch);
+            } catch (InterruptedException e) {
+                return; // cancelled, nobody reads the queue anymore
+            } catch (UncheckedIOException e) {
+                error = e.getCause();
+            } catch (IOException | RuntimeException | Error e) {
+                error = e; // rethrown by take()
+            } finally {
+                part.close();
+            }
+            try {
+                batches.put(END);
+            } catch (InterruptedException e) {
+                // cancelled
+            }
+        }
+
+        // The next batch of lines, END after the last one.
+        List<String> take() {
+            List<String> batch;
+            try {
+                batch = batches.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException("grep interrupted"));
+            }
+            if (batch == END && error != null) {
+                if (error instanceof IOException) {
+                    throw new UncheckedIOException((IOException) error);
+                }
+                if (error instanceof Error) {
+                    throw (Error) error;
+                }
+                throw (RuntimeException) error;
+            }
+            return batch;
+        }
+    }
+
+    private static Stream<String> stream(Iterator<String> lines) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(lines, Spliterator.ORDERED), false);
+    }
+
+    // Output lines of one mapped file, produced lazily window by window.
+    private final class FileSearch implements Iterator<String>, AutoCloseable {
+        private final FileChannel channel;
+        private final long size;
+        private final String prefix; // "file:" when several files are searched
+        private final Matcher matcher = regex.matcher("");
+        private final AsciiLine ascii = new AsciiLine();
+
+        private ByteBuffer buffer;
+        private long windowStart;
+        private int position;
+        private int limit;      // end of the last complete line in the window
+        private long lineNumber; // lines before position
+        private long matches;
+        private boolean finished;
+        private String next;
+
+        FileSearch(Path path, String name) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            size = channel.size();
+            prefix = name == null ? "" : name + ":";
+            Metrics.read(size);
+            map(0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !finished) {
+                try {
+                    next = advance();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String line = next;
+            next = null;
+            return line;
+        }
+
+        @Override
+        public void close() {
+            buffer = null;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void map(long start) throws IOException {
+            windowStart = start;
+            position = 0;
+            long window = WINDOW;
+            while (true) {
+                long length = Math.min(window, size - start);
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                limit = (int) length;
+                if (start + length == size) {
+                    return;
+                }
+                // stop after the last line break, the rest of the line comes with the next window
+                int end = limit;
+                while (end > 0 && buffer.get(end - 1) != '\n') {
+                    end--;
+                }
+                if (end > 0) {
+                    limit = end;
+                    return;
+                }
+                if (window >= MAX_WINDOW) {
+                    return; // a line longer than a mapping can hold is split
+                }
+                window = Math.min(window * 2, MAX_WINDOW); // a line longer than the window
+            }
+        }
+
+        private String advance() throws IOException {
+            while (true) {
+                String line = literal != null && literal.length > 0 && !invert ? nextHit() : nextLine();
+                if (line != null) {
+                    return line;
+                }
+                if (windowStart + limit < size) {
+                    map(windowStart + limit);
+                    continue;
+                }
+                finished = true;
+                return count ? prefix + matches : null;
+            }
+        }
+
+        // Literal fast path: jumps from one occurrence of the pattern to the next.
+        private String nextHit() {
+            while (position < limit) {
+                int hit = indexOf(position, limit);
+                if (hit < 0) {
+                    if (lineNumbers) {
+                        lineNumber += newlines(position, limit);
+                    }
+                    position = limit;
+                    return null;
+                }
+                int start = hit;
+                while (start > position && buffer.get(start - 1) != '\n') {
+                    start--;
+                }
+                int end = lineEnd(hit + literal.length);
+                if (lineNumbers) {
+                    lineNumber += newlines(position, start) + 1;
+                }
+                position = end + 1;
+                matches++;
+                if (!count) {
+                    return output(start, end);
+                }
+            }
+            return null;
+        }
+
+        // Every line is looked at: regexes, -v, and the empty pattern.
+        private String nextLine() {
+            while (position < limit) {
+                int start = position;
+                int end = lineEnd(start);
+                position = end + 1;
+                lineNumber++;
+                if (matches(start, end) != invert) {
+                    matches++;
+                    if (!count) {
+                        return output(start, end);
+                    }
+                }
+            }
+            return null;
+        }
+
+        private boolean matches(int start, int end) {
+            if (literal != null) {
+                return literal.length == 0 || indexOf(start, end) >= 0;
+            }
+            if (isAscii(start, end)) {
+                return matcher.reset(ascii.of(buffer, start, end)).find();
+            }
+            return matcher.reset(decode(start, end)).find();
+        }
+
+        // Horspool search for the literal in [from, to), folding ASCII case with -i.
+        private int indexOf(int from, int to) {
+            int last = literal.length - 1;
+            byte lastByte = literal[last];
+            int i = from;
+            while (i + last < to) {
+                byte b = fold(buffer.get(i + last));
+                if (b == lastByte) {
+                    int j = last - 1;
+                    while (j >= 0 && fold(buffer.get(i + j)) == literal[j]) {
+                        j--;
+                    }
+                    if (j < 0) {
+                        return i;
+                    }
+                }
+                i += skip[b & 0xff];
+            }
+            return -1;
+        }
+
+        private byte fold(byte b) {
+            return ignoreCase && b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+        }
+
+        // Index of the line break ending the line that contains from, or limit.
+        private int lineEnd(int from) {
+            for (int i = from; i < limit; i++) {
+                if (buffer.get(i) == '\n') {
+                    return i;
+                }
+            }
+            return limit;
+        }
+
+        private long newlines(int from, int to) {
+            long lines = 0;
+            for (int i = from; i < to; i++) {
+                if (buffer.get(i) == '\n') {
+                    lines++;
+                }
+            }
+            return lines;
+        }
+
+        private boolean isAscii(int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (buffer.get(i) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String output(int start, int end) {
+            String line = decode(start, end);
+            if (lineNumbers) {
+                return prefix + lineNumber + ":" + line;
+            }
+            return prefix.isEmpty() ? line : prefix + line;
+        }
+
+        // The line without its \n (and \r of \r\n, like the other commands).
+        private String decode(int start, int end) {
+            if (end > start && buffer.get(end - 1) == '\r') {
+                end--;
+            }
+            byte[] bytes = new byte[end - start];
+            buffer.get(start, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    // An ASCII line of a mapped file seen as a CharSequence, so regexes can run on it
+    // without decoding. Reused for every line of a file.
+    private static final class AsciiLine implements CharSequence {
+        private ByteBuffer buffer;
+        private int start;
+        private int length;
+
+        AsciiLine of(ByteBuffer buffer, int start, int end) {
+            if (end > start && buffer.get(end - 1) == '\r') {
+                end--;
+            }
+            this.buffer = buffer;
+            this.start = start;
+            this.length = end - start;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) buffer.get(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return toString().substring(from, to);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length];
+            buffer.get(start, bytes);
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+    }
+}
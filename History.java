@@ -0,0 +1,303 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Command history of the interactive sessions, one line per command in ~/.cli_history
+// (-Dcli.history.file), read when first used and searched through a trigram index.
+final class History {
+
+    static final int MAX_ENTRIES = Integer.getInteger("cli.history.size", 500_000);
+    static final int FLUSH_ENTRIES = 32;
+    static final long FLUSH_MILLIS = 1000;
+
+    private static History shared;
+
+    private final Path file;
+    private final int maxEntries;
+    private final List<String> pending = new ArrayList<>(); // added but not written yet
+    private final List<String> unwritten = new ArrayList<>(); // added before load(), not in the file
+    private long lastFlush;
+    private boolean writable;
+
+    private List<String> entries; // oldest first, null until loaded
+    private int first;            // entries before it were dropped, entry number 1 is entries.get(first)
+    private Trigrams index;       // null until the first search
+
+    History(Path file, int maxEntries) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.writable = file != null;
+    }
+
+    // A history without a file.
+    static History inMemory() {
+        return new History(null, MAX_ENTRIES);
+    }
+
+    static synchronized History shared() {
+        if (shared == null) {
+            String file = System.getProperty("cli.history.file",
+                    Paths.get(System.getProperty("user.home"), ".cli_history").toString());
+            shared = new History(Paths.get(file), MAX_ENTRIES);
+            Runtime.getRuntime().addShutdownHook(new Thread(shared::flush));
+        }
+        return shared;
+    }
+
+    synchronized void add(String line) {
+        if (line.isBlank() || line.indexOf('\n') >= 0) {
+            return;
+        }
+        pending.add(line);
+        if (entries != null) {
+            append(line);
+        }
+        long now = System.nanoTime();
+        if (pending.size() >= FLUSH_ENTRIES || now - lastFlush >= FLUSH_MILLIS * 1_000_000) {
+            flush();
+        }
+    }
+
+    synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (writable) {
+            try {
+                Files.write(file, pending, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                writable = false; // keep the history of this session in memory only
+                System.err.println("history: cannot write " + file + ": " + e.getMessage());
+            }
+        }
+        if (!writable && entries == null) {
+            unwritten.addAll(pending); // load() adds them after the lines of the file
+            if (unwritten.size() > maxEntries) {
+                unwritten.subList(0, unwritten.size() - maxEntries).clear();
+            }
+        }
+        pending.clear();
+        lastFlush = System.nanoTime();
+    }
+
+    synchronized int size() {
+        load();
+        return entries.size() - first;
+    }
+
+    // Entry number (1 based), oldest first.
+    synchronized String get(int number) {
+        load();
+        return entries.get(first + number - 1);
+    }
+
+    // Numbers of the entries that contain text, oldest first.
+    synchronized int[] search(String text) {
+        load();
+        if (text.length() < 3) {
+            return scan(text);
+        }
+
+        if (index == null) {
+            index = new Trigrams();
+            for (int id = 0; id < entries.size(); id++) {
+                index.add(entries.get(id), id);
+            }
+        }
+
+        // the posting lists of the query's trigrams, rarest first
+        List<Postings> lists = new ArrayList<>();
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            Postings postings = index.get(trigram(text, i));
+            if (postings == null) {
+                return new int[0];
+            }
+            if (!lists.contains(postings)) {
+                lists.add(postings);
+            }
+        }
+        lists.sort((a, b) -> Integer.compare(a.size, b.size));
+
+        // the candidates come in ascending order, so every other list is searched forward
+        // from where the previous candidate was found
+        Postings rarest = lists.get(0);
+        int[] cursors = new int[lists.size()];
+        int[] found = new int[rarest.size];
+        int count = 0;
+        candidates:
+        for (int i = 0; i < rarest.size; i++) {
+            int id = rarest.ids[i];
+            if (id < first) {
+                continue; // dropped
+            }
+            for (int j = 1; j < lists.size(); j++) {
+                cursors[j] = lists.get(j).seek(cursors[j], id);
+                if (cursors[j] == lists.get(j).size) {
+                    break candidates; // a list is exhausted, no later candidate can match
+                }
+                if (lists.get(j).ids[cursors[j]] != id) {
+                    continue candidates;
+                }
+            }
+            if (entries.get(id).contains(text)) {
+                found[count++] = id - first + 1;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private int[] scan(String text) {
+        int[] found = new int[entries.size() - first];
+        int count = 0;
+        for (int id = first; id < entries.size(); id++) {
+            if (entries.get(id).contains(text)) {
+                found[count++] = id - first + 1;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+        flush();
+        List<String> lines = new ArrayList<>();
+        if (file != null && Files.exists(file)) {
+            try {
+                lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                System.err.println("history: cannot read " + file + ": " + e.getMessage());
+            }
+        }
+        if (writable && lines.size() > 2 * maxEntries) {
+            compact(lines.subList(lines.size() - maxEntries, lines.size()));
+        }
+        lines.addAll(unwritten);
+        unwritten.clear();
+        entries = new ArrayList<>(lines.subList(Math.max(0, lines.size() - maxEntries), lines.size()));
+    }
+
+    // Replaces the file with its last lines. Lines another session appends meanwhile are lost.
+    private void compact(List<String> last) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.write(temp, last, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("history: cannot compact " + file + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // nothing left to do
+            }
+        }
+    }
+
+    private void append(String line) {
+        entries.add(line);
+        if (index != null) {
+            index.add(line, entries.size() - 1);
+        }
+        if (entries.size() - first > maxEntries) {
+            first++;
+            if (first > maxEntries / 4) { // removed in bulk, not with a shift per add
+                entries.subList(0, first).clear();
+                first = 0;
+                index = null; // the ids have moved, rebuilt by the next search
+            }
+        }
+    }
+
+    private static long trigram(String text, int i) {
+        return (long) text.charAt(i) << 32 | (long) text.charAt(i + 1) << 16 | text.charAt(i + 2);
+    }
+
+    // Entry ids of one trigram, ascending and without repeats.
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return; // the trigram occurs twice in the entry
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        // Index of the first id >= target at or after from (size if there is none):
+        // doubling steps from from, then a binary search within the last step.
+        int seek(int from, int target) {
+            int step = 1;
+            int high = from;
+            while (high < size && ids[high] < target) {
+                from = high + 1;
+                high += step;
+                step *= 2;
+            }
+            int index = Arrays.binarySearch(ids, from, Math.min(high, size), target);
+            return index >= 0 ? index : -index - 1;
+        }
+    }
+
+    // Trigram to Postings, open addressing on primitive keys (no boxing while indexing).
+    private static final class Trigrams {
+        private long[] keys = new long[1 << 12];
+        private Postings[] values = new Postings[1 << 12];
+        private int size;
+
+        void add(String line, int id) {
+            for (int i = 0; i + 3 <= line.length(); i++) {
+                long key = trigram(line, i);
+                int slot = slot(key);
+                if (values[slot] == null) {
+                    keys[slot] = key;
+                    values[slot] = new Postings();
+                    if (++size * 2 > keys.length) {
+                        grow();
+                        slot = slot(key);
+                    }
+                }
+                values[slot].add(id);
+            }
+        }
+
+        Postings get(long key) {
+            return values[slot(key)];
+        }
+
+        // The slot of key, or the empty slot where it would go.
+        private int slot(long key) {
+            int mask = keys.length - 1;
+            int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 40) & mask;
+            while (values[slot] != null && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            Postings[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Postings[oldValues.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Background jobs of one session: cmd &, jobs, wait [id] and kill <id>.
+// Every job runs on its own thread and writes into a bounded Output of its own.
+final class Jobs {
+
+    static final int BUFFER_SIZE = Integer.getInteger("cli.jobs.buffer", 1024 * 1024);
+    static final long KILL_WAIT_MILLIS = 1000; // kill reports the job if it ends this soon
+    private static final long DRAIN_MILLIS = 50; // wait prints the output this often
+
+    static final class Job {
+        final int id;
+        final String command;
+        final Output output = new Output(BUFFER_SIZE);
+        final BufferedSink sink = new BufferedSink(output, 8 * 1024);
+        final CountDownLatch ended = new CountDownLatch(1);
+        volatile int status;
+        volatile boolean killed;
+        private Thread thread; // while it runs, guarded by this
+
+        Job(int id, String command) {
+            this.id = id;
+            this.command = command;
+        }
+
+        boolean running() {
+            return ended.getCount() > 0;
+        }
+
+        String state() {
+            if (running()) {
+                return killed ? "Stopping" : "Running";
+            }
+            if (killed) {
+                return "Killed";
+            }
+            return status == 0 ? "Done" : "Exit " + status;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%d] %-8s %s", id, state(), command);
+        }
+
+        private void run(CLI copy, ParsedLine command) {
+            synchronized (this) {
+                thread = Thread.currentThread();
+            }
+            try {
+                if (!killed) {
+                    copy.executeLine(command);
+                    status = copy.getLastStatus();
+                }
+            } catch (RuntimeException e) {
+                status = 1;
+                sink.println(this.command + ": " + e);
+            } finally {
+                try {
+                    sink.flush();
+                } catch (UncheckedIOException e) {
+                    // killed while waiting for room in the buffer, the rest is dropped
+                }
+                synchronized (this) {
+                    thread = null;
+                    Thread.interrupted(); // a late kill must not reach the pool's next task
+                }
+                ended.countDown();
+            }
+        }
+
+        private synchronized void interrupt() {
+            killed = true;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    // Bytes a job has written that the session hasn't printed yet, in a ring buffer.
+    static final class Output implements WritableByteChannel {
+        private final byte[] buffer;
+        private int start; // first pending byte
+        private int count; // pending bytes
+
+        Output(int size) {
+            buffer = new byte[size];
+        }
+
+        // Blocks while the buffer is full.
+        @Override
+        public synchronized int write(ByteBuffer bytes) throws IOException {
+            int written = 0;
+            while (bytes.hasRemaining()) {
+                while (count == buffer.length) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("job output interrupted");
+                    }
+                }
+                int end = (start + count) % buffer.length;
+                int free = end >= start ? buffer.length - end : start - end;
+                int n = Math.min(free, bytes.remaining());
+                bytes.get(buffer, end, n);
+                count += n;
+                written += n;
+            }
+            return written;
+        }
+
+        // Moves the pending bytes to out, only up to the last line break if wholeLines is set
+        // (unless the buffer is full). Returns the number of bytes moved.
+        int drainTo(OutputSink out, boolean wholeLines) {
+            byte[] bytes;
+            synchronized (this) {
+                int n = count;
+                if (wholeLines && count < buffer.length) {
+                    while (n > 0 && buffer[(start + n - 1) % buffer.length] != '\n') {
+                        n--;
+                    }
+                }
+                if (n == 0) {
+                    return 0;
+                }
+                bytes = new byte[n];
+                int first = Math.min(n, buffer.length - start);
+                System.arraycopy(buffer, start, bytes, 0, first);
+                System.arraycopy(buffer, 0, bytes, first, n - first);
+                start = (start + n) % buffer.length;
+                count -= n;
+                notifyAll();
+            }
+            out.write(bytes, 0, bytes.length);
+            return bytes.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final Map<Integer, Job> jobs = new TreeMap<>();
+    private int nextId = 1;
+
+    // Starts the line on a copy of the session and returns the job.
+    synchronized Job start(CLI session, ParsedLine line) {
+        Job job = new Job(nextId++, line.text.trim());
+        CLI copy = session.copyFor(job.sink);
+        ParsedLine command = line.foreground();
+        jobs.put(job.id, job);
+        Threads.executor().execute(() -> job.run(copy, command));
+        return job;
+    }
+
+    synchronized List<Job> list() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    synchronized Job get(int id) {
+        return jobs.get(id);
+    }
+
+    // Before a prompt: prints the complete lines the running jobs have written so far, and
+    // the rest of the output and the state of the jobs that have ended, which are forgotten.
+    void reportFinished(OutputSink out) {
+        for (Job job : list()) {
+            if (job.running()) {
+                job.output.drainTo(out, true);
+            } else {
+                report(job, out);
+            }
+        }
+    }
+
+    // Waits for the job while printing its output, then forgets it. Returns its exit status.
+    int await(Job job, OutputSink out) throws IOException {
+        try {
+            while (!job.ended.await(DRAIN_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (job.output.drainTo(out, true) > 0) {
+                    out.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("wait interrupted");
+        }
+        report(job, out);
+        return job.killed ? 1 : job.status;
+    }
+
+    // Interrupts the job. It is reported as Killed, with the output it wrote until then,
+    // once its thread has ended: right away if that takes less than KILL_WAIT_MILLIS,
+    // otherwise before a later prompt.
+    void kill(Job job, OutputSink out) throws IOException {
+        job.interrupt();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(KILL_WAIT_MILLIS);
+            while (!job.ended.await(DRAIN_MILLIS, TimeUnit.MILLISECONDS)) {
+                job.output.drainTo(out, true); // a job blocked on a full buffer can't see the interrupt otherwise
+                if (System.nanoTime() > deadline) {
+                    out.println(job.toString());
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("kill interrupted");
+        }
+        report(job, out);
+    }
+
+    private void report(Job job, OutputSink out) {
+        synchronized (this) {
+            if (jobs.remove(job.id) == null) {
+                return; // already reported
+            }
+        }
+        job.output.drainTo(out, false);
+        out.println(job.toString());
+    }
+}
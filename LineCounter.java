@@ -0,0 +1,81 @@
+import java.util.Arrays;
+
+// Open-addressing hash map from line to number of occurrences (linear probing), which
+// also keeps the lines in insertion order.
+final class LineCounter {
+
+    private String[] lines = new String[16]; // distinct lines, in insertion order
+    private int[] counts = new int[16];
+    private int size;
+
+    private int[] slots = new int[32];      // index + 1 into lines, 0 = empty slot
+    private int[] slotHashes = new int[32]; // cached hash of the line in each slot
+    private int mask = 31;
+
+    // Counts one more occurrence of the line and returns its new count.
+    int add(String line) {
+        int hash = mix(line.hashCode());
+        int slot = hash & mask;
+
+        while (slots[slot] != 0) {
+            int index = slots[slot] - 1;
+            if (slotHashes[slot] == hash && lines[index].equals(line)) {
+                return ++counts[index];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == lines.length) {
+            lines = Arrays.copyOf(lines, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+        }
+        lines[size] = line;
+        counts[size] = 1;
+        size++;
+        slots[slot] = size;
+        slotHashes[slot] = hash;
+
+        if (size * 2 > slots.length) { // keep the load factor under 0.5
+            rehash(slots.length * 2);
+        }
+        return 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String line(int index) {
+        return lines[index];
+    }
+
+    int count(int index) {
+        return counts[index];
+    }
+
+    private void rehash(int capacity) {
+        int[] newSlots = new int[capacity];
+        int[] newHashes = new int[capacity];
+        int newMask = capacity - 1;
+
+        for (int slot = 0; slot < slots.length; slot++) {
+            if (slots[slot] != 0) {
+                int target = slotHashes[slot] & newMask;
+                while (newSlots[target] != 0) {
+                    target = (target + 1) & newMask;
+                }
+                newSlots[target] = slots[slot];
+                newHashes[target] = slotHashes[slot];
+            }
+        }
+        slots = newSlots;
+        slotHashes = newHashes;
+        mask = newMask;
+    }
+
+    // Spreads String.hashCode bits so that linear probing doesn't cluster.
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
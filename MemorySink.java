@@ -0,0 +1,47 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Keeps the output in memory, used by tests and to capture the output of a command.
+public class MemorySink extends BufferedSink {
+
+    private final ByteArrayOutputStream bytes;
+
+    public MemorySink() {
+        this(new ByteArrayOutputStream());
+    }
+
+    private MemorySink(ByteArrayOutputStream bytes) {
+        super(Channels.newChannel(bytes), 8 * 1024);
+        this.bytes = bytes;
+    }
+
+    public synchronized byte[] toByteArray() {
+        flush();
+        return bytes.toByteArray();
+    }
+
+    // Forgets the output so far.
+    public synchronized void clear() {
+        flush();
+        bytes.reset();
+    }
+
+    // Output lines without their line terminators.
+    public List<String> lines() {
+        String text = toString();
+        if (text.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(text.split("\n"));
+    }
+
+    @Override
+    public synchronized String toString() {
+        flush();
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,320 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Per-command metrics shared by every session, shown by the stats command and time.
+// -Dcli.metrics=false turns the recording off; time still works.
+final class Metrics {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("cli.metrics", "true"));
+
+    private static final Map<String, Stats> STATS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Sample> CURRENT = new ThreadLocal<>();
+    private static volatile com.sun.management.ThreadMXBean threads; // null until loaded, or when not HotSpot
+    private static volatile Thread counterLoader; // null until the first recorded run or time
+
+    private Metrics() {
+    }
+
+    // One measured run of a command or stage. Closing it records it.
+    static final class Sample implements AutoCloseable {
+        final String name;
+        private final Sample outer;
+        private final Sample whole; // the sample this one is a part of, or null
+        private final long start = System.nanoTime();
+        private final long allocationStart = allocatedBytes();
+        long nanos;
+        long allocated;
+        long bytesRead;
+        long bytesWritten;
+        long lines;
+        private long partsRead;      // guarded by this
+        private long partsAllocated; // guarded by this
+
+        private Sample(String name, Sample outer, Sample whole) {
+            this.name = name;
+            this.outer = outer;
+            this.whole = whole;
+        }
+
+        void written(long bytes, long lines) {
+            this.bytesWritten += bytes;
+            this.lines += lines;
+        }
+
+        @Override
+        public void close() {
+            nanos = System.nanoTime() - start;
+            allocated = allocationStart < 0 ? 0 : Math.max(0, allocatedBytes() - allocationStart);
+            CURRENT.set(outer);
+            synchronized (this) {
+                bytesRead += partsRead;
+                allocated += partsAllocated;
+            }
+            if (whole != null) {
+                whole.addPart(this);
+            }
+            if (ENABLED && name != null) {
+                STATS.computeIfAbsent(name, key -> new Stats()).add(this);
+            }
+        }
+
+        private synchronized void addPart(Sample part) {
+            partsRead += part.bytesRead;
+            partsAllocated += part.allocated;
+        }
+
+        // One line for the time command.
+        String summary() {
+            return String.format("real %s  lines %d  read %s  written %s  allocated %s",
+                    duration(nanos), lines, size(bytesRead), size(bytesWritten), size(allocated));
+        }
+    }
+
+    // Starts measuring on the current thread, name is null for a run that is only timed.
+    static Sample start(String name) {
+        return start(name, null);
+    }
+
+    // Starts measuring on the current thread a part of the whole sample, which is taken on
+    // another thread (see current()). A part that ends after the whole is only recorded
+    // under its own name.
+    static Sample start(String name, Sample whole) {
+        if (ENABLED && counterLoader == null) {
+            loadAllocationCounter();
+        }
+        Sample sample = new Sample(name, CURRENT.get(), whole);
+        CURRENT.set(sample);
+        return sample;
+    }
+
+    // The sample of the command running on this thread, or null.
+    static Sample current() {
+        return CURRENT.get();
+    }
+
+    // Counts bytes read from a file by the command running on this thread.
+    static void read(long bytes) {
+        Sample sample = CURRENT.get();
+        if (sample != null) {
+            sample.bytesRead += bytes;
+        }
+    }
+
+    static void reset() {
+        STATS.clear();
+    }
+
+    static final class Stats {
+        private final Histogram wallTime = new Histogram();
+        private final LongAdder lines = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder allocated = new LongAdder();
+
+        void add(Sample sample) {
+            wallTime.record(sample.nanos);
+            lines.add(sample.lines);
+            bytesRead.add(sample.bytesRead);
+            bytesWritten.add(sample.bytesWritten);
+            allocated.add(sample.allocated);
+        }
+    }
+
+    // stats: one row per command, sorted by name.
+    static void printTable(OutputSink out) {
+        out.println(String.format("%-24s %7s %9s %9s %9s %9s %10s %9s %9s %9s",
+                "command", "count", "p50", "p90", "p99", "max", "lines", "read", "written", "alloc"));
+        for (String name : names()) {
+            Stats stats = STATS.get(name);
+            Histogram time = stats.wallTime;
+            out.println(String.format("%-24s %7d %9s %9s %9s %9s %10d %9s %9s %9s",
+                    name, time.count(),
+                    duration(time.percentile(0.50)), duration(time.percentile(0.90)),
+                    duration(time.percentile(0.99)), duration(time.max()),
+                    stats.lines.sum(), size(stats.bytesRead.sum()), size(stats.bytesWritten.sum()),
+                    size(stats.allocated.sum())));
+        }
+    }
+
+    // stats --json: the same numbers, times in nanoseconds and sizes in bytes.
+    static void printJson(OutputSink out) {
+        StringBuilder json = new StringBuilder("{\"commands\":[");
+        boolean first = true;
+        for (String name : names()) {
+            Stats stats = STATS.get(name);
+            Histogram time = stats.wallTime;
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"name\":");
+            quote(json, name);
+            json.append(",\"count\":").append(time.count())
+                    .append(",\"mean_ns\":").append(time.count() == 0 ? 0 : time.sum() / time.count())
+                    .append(",\"p50_ns\":").append(time.percentile(0.50))
+                    .append(",\"p90_ns\":").append(time.percentile(0.90))
+                    .append(",\"p99_ns\":").append(time.percentile(0.99))
+                    .append(",\"max_ns\":").append(time.max())
+                    .append(",\"lines\":").append(stats.lines.sum())
+                    .append(",\"bytes_read\":").append(stats.bytesRead.sum())
+                    .append(",\"bytes_written\":").append(stats.bytesWritten.sum())
+                    .append(",\"allocated_bytes\":").append(stats.allocated.sum())
+                    .append('}');
+        }
+        out.println(json.append("]}"));
+    }
+
+    private static List<String> names() {
+        List<String> names = new ArrayList<>(STATS.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    private static void quote(StringBuilder json, String text) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    // Log-linear histogram of nanosecond values. Values below 16 have their own bucket,
+    // above that every power of two is split into 16 buckets. Recording is lock free.
+    static final class Histogram {
+        private static final int SUB_BUCKETS = 16;
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        // Middle of the bucket holding the value at the given rank (0 < p <= 1).
+        long percentile(double p) {
+            long total = count();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(middle(i), max());
+                }
+            }
+            return max();
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+            return (exponent - 3) * SUB_BUCKETS + sub;
+        }
+
+        static long middle(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + 3;
+            long width = 1L << (exponent - 4);
+            long low = (SUB_BUCKETS + index % SUB_BUCKETS) * width;
+            return low + width / 2;
+        }
+    }
+
+    static String duration(long nanos) {
+        if (nanos < 1_000_000) {
+            return String.format("%.1fus", nanos / 1e3);
+        }
+        if (nanos < 1_000_000_000) {
+            return String.format("%.1fms", nanos / 1e6);
+        }
+        return String.format("%.2fs", nanos / 1e9);
+    }
+
+    static String size(long bytes) {
+        if (bytes < 1024) {
+            return bytes + "B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1fKB", bytes / 1024.0);
+        }
+        if (bytes < 1024L * 1024 * 1024) {
+            return String.format("%.1fMB", bytes / (1024.0 * 1024));
+        }
+        return String.format("%.1fGB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    // Waits until the allocation counter is loaded, so the next run reports its allocations.
+    static void awaitAllocationCounter() {
+        try {
+            loadAllocationCounter().join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // -1 while the counter isn't loaded
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean counter = threads;
+        return counter == null ? -1 : counter.getCurrentThreadAllocatedBytes();
+    }
+
+    // Starts loading the counter unless that has been done, and returns the loader.
+    private static synchronized Thread loadAllocationCounter() {
+        if (counterLoader == null) {
+            Thread loader = new Thread(() -> threads = allocationCounter(), "cli-metrics-init");
+            loader.setDaemon(true);
+            loader.start();
+            counterLoader = loader;
+        }
+        return counterLoader;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+            if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled()) {
+                return counter;
+            }
+        }
+        return null; // not HotSpot, allocations are reported as 0
+    }
+}
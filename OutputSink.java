@@ -0,0 +1,58 @@
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+
+// Where the output of a session's commands goes: the console, a file or memory.
+// Write errors are reported as UncheckedIOException.
+public interface OutputSink extends Closeable {
+
+    void print(CharSequence text);
+
+    void println(CharSequence line);
+
+    void write(byte[] bytes, int offset, int length);
+
+    // Copies count bytes of the file starting at position without decoding them.
+    long transferFrom(FileChannel source, long position, long count) throws IOException;
+
+    void flush();
+
+    // Totals since the sink was created, for the command metrics (see Metrics).
+    default long bytesWritten() {
+        return 0;
+    }
+
+    default long linesWritten() {
+        return 0;
+    }
+
+    @Override
+    void close();
+
+    // Buffered sink on stdout, shared by every session that prints to the console.
+    static OutputSink console() {
+        return Console.SINK;
+    }
+
+    final class Console {
+        private static final BufferedSink SINK =
+                new BufferedSink(new FileOutputStream(FileDescriptor.out).getChannel());
+
+        static {
+            // output still in the buffer when the JVM stops is not lost
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    SINK.flush();
+                } catch (UncheckedIOException e) {
+                    // stdout is gone (closed pipe), nothing left to print to
+                }
+            }));
+        }
+
+        private Console() {
+        }
+    }
+}
@@ -0,0 +1,50 @@
+import java.util.List;
+
+// Parsed form of one command line: a pipeline of stages, an optional output redirection
+// and whether it runs in the background. Immutable, so CommandParser can cache it.
+final class ParsedLine {
+
+    // One command of the pipeline: its name and arguments.
+    static final class Stage {
+        final String name;
+        private final String[] args;
+
+        Stage(String name, String[] args) {
+            this.name = name;
+            this.args = args.clone();
+        }
+
+        // A copy, the commands may change the array they are given.
+        String[] args() {
+            return args.clone();
+        }
+
+        @Override
+        public String toString() {
+            return args.length == 0 ? name : name + " " + String.join(" ", args);
+        }
+    }
+
+    final String text;        // the line as typed, for error messages
+    final List<Stage> stages; // empty for a blank line
+    final String redirect;    // target file of > or >>, null when printing to the session
+    final boolean append;     // true for >>
+    final boolean background; // ends with &
+
+    ParsedLine(String text, List<Stage> stages, String redirect, boolean append, boolean background) {
+        this.text = text;
+        this.stages = List.copyOf(stages);
+        this.redirect = redirect;
+        this.append = append;
+        this.background = background;
+    }
+
+    // The same line without the &, as run by the job.
+    ParsedLine foreground() {
+        return background ? new ParsedLine(text, stages, redirect, append, false) : this;
+    }
+
+    boolean isEmpty() {
+        return stages.isEmpty();
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// java CLI --serve <socket path>: one JVM serving any number of sessions over a Unix domain
+// socket only its owner can connect to, each on its own thread with a CLI of its own.
+final class Server implements AutoCloseable {
+
+    // First line a client may send (header + " " + directory); a batch session ends with a
+    // trailer of STATUS and the exit status as 4 bytes. Without a header there is no trailer.
+    static final String INTERACTIVE = "\0interactive";
+    static final String BATCH = "\0batch";
+    static final String STATUS = "\0status ";
+    static final int TRAILER_SIZE = STATUS.length() + 4;
+
+    private final ServerSocketChannel channel;
+    private final Path socketFile;
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    private Server(ServerSocketChannel channel, Path socketFile) {
+        this.channel = channel;
+        this.socketFile = socketFile;
+    }
+
+    static Server open(String socket) throws IOException {
+        Path socketFile = Paths.get(socket);
+        if (Files.exists(socketFile)) {
+            if (listening(UnixDomainSocketAddress.of(socketFile))) {
+                throw new IOException("a server is already listening on " + socketFile);
+            }
+            Files.delete(socketFile); // left behind by a server that didn't shut down
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            bind(channel, socketFile);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new Server(channel, socketFile);
+    }
+
+    // Binds the socket in a directory only the owner can enter, makes it owner-only and only
+    // then moves it to its path, so no other user can connect at any time.
+    private static void bind(ServerSocketChannel channel, Path socketFile) throws IOException {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            channel.bind(UnixDomainSocketAddress.of(socketFile), 1024);
+            return;
+        }
+        Path parent = socketFile.toAbsolutePath().getParent();
+        Path dir = Files.createTempDirectory(parent, ".cli-",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        Path bound = dir.resolve("s");
+        try {
+            channel.bind(UnixDomainSocketAddress.of(bound), 1024);
+            Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            Files.move(bound, socketFile, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(bound);
+            Files.delete(dir);
+        }
+    }
+
+    private static boolean listening(SocketAddress address) {
+        try {
+            SocketChannel.open(address).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Accepts clients until the server is closed.
+    void serve() throws IOException {
+        while (true) {
+            SocketChannel client;
+            try {
+                client = channel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            Threads.executor().execute(() -> session(client));
+        }
+    }
+
+    int sessions() {
+        return sessions.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        Files.deleteIfExists(socketFile);
+    }
+
+    private void session(SocketChannel client) {
+        sessions.incrementAndGet();
+        try (SocketChannel connection = client) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(connection), StandardCharsets.UTF_8));
+            BufferedSink out = new BufferedSink(connection, 16 * 1024);
+            try {
+                run(in, out);
+            } catch (RuntimeException e) {
+                out.println("session failed: " + e); // the client sees why its session ended
+            }
+            out.flush();
+        } catch (IOException | UncheckedIOException e) {
+            // the client went away, its session is over either way
+        } finally {
+            sessions.decrementAndGet();
+        }
+    }
+
+    // The optional header, then the commands of the client on a CLI of its own.
+    private static void run(BufferedReader in, BufferedSink out) throws IOException {
+        in.mark(8 * 1024);
+        String header = in.readLine();
+        boolean interactive = header != null && header.startsWith(INTERACTIVE);
+        boolean batch = header != null && header.startsWith(BATCH);
+        if (!interactive && !batch) {
+            in.reset(); // no header, the first line is a command
+        }
+
+        CLI cli = new CLI();
+        String dir = interactive || batch ? header.substring(header.indexOf(' ') + 1) : "";
+        if (!dir.isEmpty() && Files.isDirectory(Paths.get(dir))) {
+            cli.setCurrentDirectory(Paths.get(dir).toFile());
+        }
+        cli.setOutput(out);
+        cli.setHistory(History.inMemory()); // the console's history file isn't shared with clients
+
+        if (interactive) {
+            cli.start(in);
+        } else {
+            int status = cli.runBatch(in, false);
+            if (batch) {
+                out.write(trailer(status), 0, TRAILER_SIZE);
+            }
+        }
+    }
+
+    // The last bytes of a batch session, see Client.
+    static byte[] trailer(int status) {
+        return ByteBuffer.allocate(TRAILER_SIZE).put(STATUS.getBytes(StandardCharsets.ISO_8859_1)).putInt(status).array();
+    }
+}
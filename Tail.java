@@ -0,0 +1,287 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// tail [-n N] [-f] [file] - the last N lines (10 by default), read backwards from the end
+// of the file; -f then prints what is appended to it.
+final class Tail {
+
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final int MAX_BYTES = 64 * 1024 * 1024;
+    static final long POLL_MILLIS = Long.getLong("cli.tail.pollMillis", 500);
+
+    long lines = 10;
+    boolean follow;
+    String file;
+
+    static Tail parse(String[] args) {
+        Tail tail = new Tail();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-f")) {
+                tail.follow = true;
+            } else if (arg.equals("-n") && i + 1 < args.length) {
+                tail.lines = lineCount("tail", args[++i]);
+            } else if (arg.startsWith("-n")) {
+                tail.lines = lineCount("tail", arg.substring(2));
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                tail.lines = lineCount("tail", arg.substring(1));
+            } else if (tail.file == null) {
+                tail.file = arg;
+            } else {
+                throw new IllegalArgumentException("Usage: tail [-n N] [-f] [file]");
+            }
+        }
+        return tail;
+    }
+
+    // The N of -n N (also used by head).
+    static long lineCount(String command, String value) {
+        try {
+            long count = Long.parseLong(value);
+            if (count >= 0) {
+                return count;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(command + ": invalid number of lines: " + value);
+    }
+
+    // Pipe stage: the last lines of the input.
+    Stream<String> last(Stream<String> input) {
+        return Stream.of(input).flatMap(lines -> {
+            Deque<String> last = new ArrayDeque<>();
+            lines.forEach(line -> {
+                if (last.size() == this.lines) {
+                    last.pollFirst();
+                }
+                if (this.lines > 0) {
+                    last.addLast(line);
+                }
+            });
+            return last.stream();
+        }).onClose(input::close);
+    }
+
+    // The last lines of the file, followed by the lines appended later with -f.
+    Stream<String> open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            List<String> last = last(channel, size);
+            if (!follow) {
+                channel.close();
+                return last.stream();
+            }
+            Follower follower = new Follower(path, channel, size);
+            Stream<String> appended = StreamSupport.stream(
+                    Spliterators.spliteratorUnknownSize(follower, Spliterator.ORDERED), false);
+            return Stream.concat(last.stream(), appended).onClose(follower::close);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private List<String> last(FileChannel channel, long size) throws IOException {
+        if (lines == 0 || size == 0) {
+            return Collections.emptyList();
+        }
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        long position = size;
+        long start = Math.max(0, size - MAX_BYTES);
+        long found = 0;
+        long read = 0;
+        int next = -1; // the byte after the current one
+        search:
+        while (position > start) {
+            int length = (int) Math.min(BLOCK_SIZE, position - start);
+            position -= length;
+            block.clear().limit(length);
+            readFully(channel, block, position);
+            read += length;
+            for (int i = length - 1; i >= 0; i--) {
+                byte b = block.get(i);
+                // \r\n is one line break, and the one that ends the file doesn't start another line
+                boolean lineBreak = b == '\n' || (b == '\r' && next != '\n');
+                next = b;
+                if (lineBreak && position + i != size - 1 && ++found == lines) {
+                    start = position + i + 1;
+                    break search;
+                }
+            }
+        }
+        Metrics.read(read);
+
+        ByteBuffer tail = ByteBuffer.allocate((int) (size - start));
+        readFully(channel, tail, start);
+        String text = new String(tail.array(), 0, tail.limit(), StandardCharsets.UTF_8);
+        // split like Files.lines, on \n, \r\n and \r
+        List<String> last = new BufferedReader(new StringReader(text)).lines().collect(Collectors.toList());
+        return last.size() > lines ? last.subList((int) (last.size() - lines), last.size()) : last;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break; // truncated meanwhile
+            }
+        }
+        buffer.flip();
+    }
+
+    // Lines appended to the file, one blocking hasNext() at a time, until interrupted.
+    private static final class Follower implements Iterator<String> {
+        private final Path path;
+        private final FileChannel channel;
+        private final WatchService watcher;
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        private final ByteArrayOutputStream partial = new ByteArrayOutputStream(); // line without its break yet
+        private int previous = -1; // last byte read, a \n right after a \r doesn't end another line
+        private final Deque<String> ready = new ArrayDeque<>();
+        private long position;
+
+        Follower(Path path, FileChannel channel, long position) {
+            this.path = path;
+            this.channel = channel;
+            this.position = position;
+            this.watcher = watch(path.toAbsolutePath().getParent());
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (ready.isEmpty()) {
+                    readAppended();
+                    if (ready.isEmpty()) {
+                        ConcurrentPipeline.idle(); // show what was printed so far before waiting
+                        await();
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return ready.poll();
+        }
+
+        void close() {
+            try {
+                if (watcher != null) {
+                    watcher.close();
+                }
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void readAppended() throws IOException {
+            long size = channel.size();
+            if (size < position) {
+                position = 0; // truncated, start over
+                partial.reset();
+                previous = -1;
+            }
+            while (position < size) {
+                block.clear();
+                int read = channel.read(block, position);
+                if (read <= 0) {
+                    break;
+                }
+                position += read;
+                Metrics.read(read);
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    byte b = block.get(i);
+                    // the rule of last() read forwards: the \r of \r\n ends the line right away, so
+                    // output that ends lines with \r alone shows without waiting for the next byte
+                    boolean lineBreak = b == '\r' || (b == '\n' && previous != '\r');
+                    if (lineBreak) {
+                        partial.write(block.array(), start, i - start);
+                        ready.add(line());
+                    }
+                    if (b == '\r' || b == '\n') {
+                        start = i + 1;
+                    }
+                    previous = b;
+                }
+                partial.write(block.array(), start, read - start);
+            }
+        }
+
+        private String line() {
+            String line = partial.toString(StandardCharsets.UTF_8);
+            partial.reset();
+            return line;
+        }
+
+        // Waits for a change in the file's directory, or POLL_MILLIS without a watcher.
+        // Any change just leads to another look at the file size, so missed or unrelated
+        // events only cost a wake-up.
+        private void await() throws IOException {
+            try {
+                if (watcher == null) {
+                    Thread.sleep(POLL_MILLIS);
+                    return;
+                }
+                WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("tail -f " + path + " interrupted");
+            }
+        }
+
+        private static WatchService watch(Path dir) {
+            try {
+                WatchService watcher = FileSystems.getDefault().newWatchService();
+                try {
+                    dir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+                    return watcher;
+                } catch (IOException | UnsupportedOperationException e) {
+                    watcher.close();
+                }
+            } catch (IOException | UnsupportedOperationException e) {
+                // polled instead
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Executor for pipe stages and other background work: virtual threads on Java 21+,
+// daemon platform threads otherwise.
+final class Threads {
+
+    private static final ExecutorService EXECUTOR = create();
+
+    private Threads() {
+    }
+
+    static ExecutorService executor() {
+        return EXECUTOR;
+    }
+
+    static boolean virtual() {
+        return !(EXECUTOR instanceof java.util.concurrent.ThreadPoolExecutor);
+    }
+
+    private static ExecutorService create() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "cli-worker-" + count.incrementAndGet());
+                thread.setDaemon(true); // never keeps the JVM alive after exit
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Deletes directory trees bottom-up for rm -r (and for mv across filesystems), one
+// fork-join task per directory. Symbolic links are removed, never followed.
+final class TreeDeleter {
+
+    static final int ENTRIES_PER_TASK = 64;
+
+    private static ForkJoinPool pool;
+
+    private final boolean dryRun;
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong directories = new AtomicLong();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicReference<IOException> firstFailure = new AtomicReference<>();
+    private volatile boolean cancelled; // the calling thread was interrupted
+    private long nanos;
+
+    TreeDeleter(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    // Entries deleted (or counted) so far, for the progress counter.
+    long progress() {
+        return files.get() + directories.get();
+    }
+
+    long files() {
+        return files.get();
+    }
+
+    long directories() {
+        return directories.get();
+    }
+
+    // Deletes a file, a link or a whole directory tree.
+    void delete(Path path) throws IOException {
+        long start = System.nanoTime();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attributes.isDirectory()) {
+                run(new DeleteDirectory(path));
+            } else if (dryRun) {
+                files.incrementAndGet();
+            } else {
+                Files.delete(path);
+                files.incrementAndGet();
+            }
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+
+        IOException failure = firstFailure.get();
+        if (failure != null) {
+            int more = failures.get() - 1;
+            throw more == 0 ? failure : new IOException(failure.getMessage() + " (and " + more + " more errors)", failure);
+        }
+    }
+
+    // Runs the tree's task and waits for it, like pool().invoke but interruptible.
+    private void run(RecursiveAction task) throws IOException {
+        pool().execute(task);
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            cancelled = true;
+            task.quietlyJoin(); // the workers stop at their next entry
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("rm interrupted after " + progress() + " entries");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // "Deleted 203100 entries in 2.10 s: 96714 entries/s". Without a stat per entry a real
+    // run can't tell empty directories from files, so only a dry run reports them separately.
+    String summary() {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        if (dryRun) {
+            return String.format("Would delete %d files and %d directories", files(), directories());
+        }
+        return String.format("Deleted %d entries in %.2f s: %.0f entries/s", progress(), seconds, progress() / seconds);
+    }
+
+    private final class DeleteDirectory extends RecursiveAction {
+        private final Path dir;
+
+        DeleteDirectory(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<RecursiveAction> tasks = new ArrayList<>();
+            List<Path> slice = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (cancelled) {
+                        return;
+                    }
+                    slice.add(entry);
+                    if (slice.size() == ENTRIES_PER_TASK) {
+                        tasks.add(new DeleteEntries(slice));
+                        slice = new ArrayList<>();
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            if (!slice.isEmpty()) {
+                tasks.add(new DeleteEntries(slice));
+            }
+            invokeAll(tasks);
+            if (cancelled) {
+                return; // the entries may still be there
+            }
+
+            if (!dryRun) {
+                try {
+                    Files.delete(dir); // fails if an entry could not be deleted, that error is already recorded
+                } catch (NoSuchFileException e) {
+                    // removed by someone else in the meantime
+                } catch (IOException e) {
+                    if (failures.get() == 0) {
+                        fail(e);
+                    }
+                    return;
+                }
+            }
+            directories.incrementAndGet();
+        }
+    }
+
+    private final class DeleteEntries extends RecursiveAction {
+        private final List<Path> entries;
+
+        DeleteEntries(List<Path> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        protected void compute() {
+            List<DeleteDirectory> subdirectories = new ArrayList<>();
+            for (Path entry : entries) {
+                if (cancelled) {
+                    return;
+                }
+                if (!dryRun && new File(entry.toString()).delete()) {
+                    files.incrementAndGet(); // a file, a link or an empty directory (see summary)
+                    continue;
+                }
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    subdirectories.add(new DeleteDirectory(entry));
+                } else if (dryRun) {
+                    files.incrementAndGet();
+                } else {
+                    try {
+                        Files.delete(entry); // only to get the reason
+                        files.incrementAndGet();
+                    } catch (NoSuchFileException e) {
+                        // already gone
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    private void fail(IOException e) {
+        failures.incrementAndGet();
+        firstFailure.compareAndSet(null, e);
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            pool = new ForkJoinPool(Integer.getInteger("cli.rm.threads", Math.min(16, 2 * cores)));
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// uniq [--global] [-c] [-d] [-u] in a single pass over the input; --global drops every
+// repeated line (hash based, no sort needed), not only adjacent ones.
+final class Uniq {
+
+    boolean global;
+    boolean count;
+    boolean duplicatesOnly;
+    boolean uniqueOnly;
+    final List<String> operands = new ArrayList<>(); // non-option arguments (file name)
+
+    static Uniq parse(String[] args) {
+        Uniq uniq = new Uniq();
+        for (String arg : args) {
+            switch (arg) {
+                case "--global":
+                    uniq.global = true;
+                    break;
+                case "-c":
+                    uniq.count = true;
+                    break;
+                case "-d":
+                    uniq.duplicatesOnly = true;
+                    break;
+                case "-u":
+                    uniq.uniqueOnly = true;
+                    break;
+                default:
+                    if (arg.startsWith("-")) {
+                        throw new IllegalArgumentException("uniq: unknown option " + arg);
+                    }
+                    uniq.operands.add(arg);
+            }
+        }
+        return uniq;
+    }
+
+    Stream<String> apply(Stream<String> input) {
+        if (global) {
+            return global(input);
+        }
+        return adjacent(input);
+    }
+
+    // Only the current run of equal lines is kept, so memory stays constant.
+    private Stream<String> adjacent(Stream<String> input) {
+        Iterator<String> lines = input.iterator();
+
+        Iterator<String> runs = new Iterator<>() {
+            private String pending; // first line of the run that is being read
+            private String next;    // next output line, null when not computed yet
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && (pending != null || lines.hasNext())) {
+                    String line = pending != null ? pending : lines.next();
+                    int occurrences = 1;
+                    pending = null;
+                    while (lines.hasNext()) {
+                        String following = lines.next();
+                        if (!following.equals(line)) {
+                            pending = following;
+                            break;
+                        }
+                        occurrences++;
+                    }
+                    next = output(line, occurrences);
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String line = next;
+                next = null;
+                return line;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(runs, Spliterator.ORDERED), false)
+                .onClose(input::close);
+    }
+
+    // Hash based: memory scales with the number of distinct lines.
+    private Stream<String> global(Stream<String> input) {
+        LineCounter counter = new LineCounter();
+
+        if (!count && !duplicatesOnly && !uniqueOnly) {
+            // first occurrences can be printed right away
+            return input.filter(line -> counter.add(line) == 1);
+        }
+
+        // counts are only final at the end of the input
+        Iterator<String> lines = input.iterator();
+        Iterator<String> results = new Iterator<>() {
+            private int index = -1;
+            private String next;
+
+            @Override
+            public boolean hasNext() {
+                if (index < 0) {
+                    while (lines.hasNext()) {
+                        counter.add(lines.next());
+                    }
+                    index = 0;
+                }
+                while (next == null && index < counter.size()) {
+                    next = output(counter.line(index), counter.count(index));
+                    index++;
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String line = next;
+                next = null;
+                return line;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED), false)
+                .onClose(input::close);
+    }
+
+    // Formats one group of equal lines, or returns null when the options filter it out.
+    private String output(String line, int occurrences) {
+        if (duplicatesOnly && occurrences < 2) {
+            return null;
+        }
+        if (uniqueOnly && occurrences > 1) {
+            return null;
+        }
+        if (count) {
+            return String.format("%7d %s", occurrences, line);
+        }
+        return line;
+    }
+}
@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
+
+// wc [-l] [-w] [-c] [file...] - counts lines, words and bytes, all three by default.
+// Files are memory-mapped and counted eight bytes at a time, large ones in parallel ranges.
+final class WordCount {
+
+    static final int RANGE_SIZE = 32 * 1024 * 1024;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH = 0x8080808080808080L;
+    private static final long LOW = 0x7f7f7f7f7f7f7f7fL;
+
+    private static ForkJoinPool pool;
+
+    boolean lines;
+    boolean words;
+    boolean bytes;
+    final List<String> files = new ArrayList<>();
+    private volatile boolean cancelled; // the calling thread was interrupted
+
+    static WordCount parse(String[] args) {
+        WordCount wc = new WordCount();
+        for (String arg : args) {
+            if (arg.length() > 1 && arg.startsWith("-")) {
+                for (int i = 1; i < arg.length(); i++) {
+                    switch (arg.charAt(i)) {
+                        case 'l':
+                            wc.lines = true;
+                            break;
+                        case 'w':
+                            wc.words = true;
+                            break;
+                        case 'c':
+                            wc.bytes = true;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("wc: unknown option -" + arg.charAt(i));
+                    }
+                }
+            } else {
+                wc.files.add(arg);
+            }
+        }
+        if (!wc.lines && !wc.words && !wc.bytes) {
+            wc.lines = wc.words = wc.bytes = true;
+        }
+        return wc;
+    }
+
+    // Counts of a file or of a range of one.
+    static final class Counts {
+        long lines;
+        long words;
+        long bytes;
+        boolean startsInWord; // first byte isn't whitespace
+        boolean endsInWord;   // last byte isn't whitespace
+
+        // This range followed by next.
+        Counts merge(Counts next) {
+            Counts merged = new Counts();
+            merged.lines = lines + next.lines;
+            merged.words = words + next.words - (endsInWord && next.startsInWord ? 1 : 0);
+            merged.bytes = bytes + next.bytes;
+            merged.startsInWord = bytes == 0 ? next.startsInWord : startsInWord;
+            merged.endsInWord = next.bytes == 0 ? endsInWord : next.endsInWord;
+            return merged;
+        }
+
+        void add(Counts file) {
+            lines += file.lines;
+            words += file.words;
+            bytes += file.bytes;
+        }
+    }
+
+    // Pipe stage: one line with the counts of the input.
+    Stream<String> count(Stream<String> input) {
+        return Stream.of(input).map(lines -> format(countLines(lines), null, 1)).onClose(input::close);
+    }
+
+    // Standalone: one line per file (resolved by the caller, printed with the names as
+    // given), and a total when there are several.
+    List<String> count(List<Path> paths) throws IOException {
+        List<ForkJoinTask<Counts>> tasks = new ArrayList<>();
+        for (Path path : paths) {
+            tasks.add(pool().submit(new CountFile(path))); // small files are counted side by side
+        }
+        List<Counts> counts = new ArrayList<>();
+        Counts total = new Counts();
+        for (int i = 0; i < paths.size(); i++) {
+            Counts file;
+            try {
+                file = tasks.get(i).get();
+            } catch (InterruptedException e) {
+                cancel(tasks);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("wc interrupted");
+            } catch (ExecutionException e) {
+                cancel(tasks);
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+            Metrics.read(file.bytes);
+            counts.add(file);
+            total.add(file);
+        }
+
+        int width = Math.max(1, String.valueOf(Math.max(total.lines, Math.max(total.words, total.bytes))).length());
+        List<String> output = new ArrayList<>();
+        for (int i = 0; i < paths.size(); i++) {
+            output.add(format(counts.get(i), files.get(i), width));
+        }
+        if (paths.size() > 1) {
+            output.add(format(total, "total", width));
+        }
+        return output;
+    }
+
+    // Stops the ranges that are still running at their next range, drops the others.
+    private void cancel(List<ForkJoinTask<Counts>> tasks) {
+        cancelled = true;
+        for (ForkJoinTask<Counts> task : tasks) {
+            task.cancel(true);
+        }
+    }
+
+    private String format(Counts counts, String name, int width) {
+        StringBuilder line = new StringBuilder();
+        if (lines) {
+            pad(line, counts.lines, width);
+        }
+        if (words) {
+            pad(line, counts.words, width);
+        }
+        if (bytes) {
+            pad(line, counts.bytes, width);
+        }
+        if (name != null) {
+            line.append(' ').append(name);
+        }
+        return line.toString();
+    }
+
+    private static void pad(StringBuilder line, long count, int width) {
+        if (line.length() > 0) {
+            line.append(' ');
+        }
+        String digits = String.valueOf(count);
+        for (int i = digits.length(); i < width; i++) {
+            line.append(' ');
+        }
+        line.append(digits);
+    }
+
+    // Every line counts as terminated by \n, bytes are its UTF-8 length.
+    private Counts countLines(Stream<String> input) {
+        Counts counts = new Counts();
+        input.forEach(line -> {
+            counts.lines++;
+            if (words) {
+                boolean space = true;
+                for (int i = 0; i < line.length(); i++) {
+                    boolean next = isSpace(line.charAt(i));
+                    if (space && !next) {
+                        counts.words++;
+                    }
+                    space = next;
+                }
+            }
+            if (bytes) {
+                counts.bytes += utf8Length(line) + 1;
+            }
+        });
+        return counts;
+    }
+
+    private static long utf8Length(String line) {
+        long length = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < line.length() && Character.isLowSurrogate(line.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private Counts countRange(FileChannel channel, long start, long end) throws IOException {
+        if (cancelled || Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("wc interrupted");
+        }
+        return count(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), words);
+    }
+
+    // Counts the buffer from 0 to its limit. Words are counted by their first byte, a
+    // non-whitespace byte after a whitespace byte (or at the start of the buffer).
+    static Counts count(ByteBuffer buffer, boolean words) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN); // byte k of a long is bits 8k to 8k + 7
+        Counts counts = new Counts();
+        int length = buffer.limit();
+        counts.bytes = length;
+        if (length == 0) {
+            return counts;
+        }
+
+        long lines = 0;
+        long starts = 0;
+        long previousSpace = 0x80; // high bit of the byte before the current long, set if whitespace
+        int i = 0;
+        if (words) {
+            for (; i + 8 <= length; i += 8) {
+                long x = buffer.getLong(i);
+                lines += Long.bitCount(zeroBytes(x ^ ('\n' * ONES)));
+                long space = spaceBytes(x);
+                starts += Long.bitCount(~space & HIGH & (space << 8 | previousSpace));
+                previousSpace = space >>> 56;
+            }
+        } else {
+            for (; i + 8 <= length; i += 8) {
+                lines += Long.bitCount(zeroBytes(buffer.getLong(i) ^ ('\n' * ONES)));
+            }
+        }
+        boolean space = previousSpace != 0;
+        for (; i < length; i++) {
+            byte b = buffer.get(i);
+            if (b == '\n') {
+                lines++;
+            }
+            boolean next = isSpace(b);
+            if (space && !next) {
+                starts++;
+            }
+            space = next;
+        }
+
+        counts.lines = lines;
+        counts.words = starts;
+        counts.startsInWord = !isSpace(buffer.get(0));
+        counts.endsInWord = !isSpace(buffer.get(length - 1));
+        return counts;
+    }
+
+    // High bit of every byte of x that is zero.
+    private static long zeroBytes(long x) {
+        return ~(((x & LOW) + LOW) | x | LOW);
+    }
+
+    // High bit of every byte of x that is whitespace: ' ' or \t \n \v \f \r (9 to 13).
+    private static long spaceBytes(long x) {
+        return zeroBytes(x ^ (' ' * ONES)) | (atLeast(x, 9) & ~atLeast(x, 14));
+    }
+
+    // High bit of every ASCII byte of x that is >= n (n <= 128): adding 128 - n to the
+    // low seven bits carries into the high bit exactly then, and never into the next byte.
+    private static long atLeast(long x, int n) {
+        return ((x & LOW) + (0x80 - n) * ONES) & ~x & HIGH;
+    }
+
+    private static boolean isSpace(int c) {
+        return c == ' ' || (c >= 9 && c <= 13);
+    }
+
+    // A file, split in halves until the ranges are at most RANGE_SIZE.
+    private final class CountFile extends RecursiveTask<Counts> {
+        private final Path path;
+
+        CountFile(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected Counts compute() {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (!lines && !words) {
+                    Counts counts = new Counts();
+                    counts.bytes = channel.size();
+                    return counts;
+                }
+                return new CountRange(channel, 0, channel.size()).compute();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private final class CountRange extends RecursiveTask<Counts> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        CountRange(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Counts compute() {
+            if (end - start <= RANGE_SIZE) {
+                try {
+                    return countRange(channel, start, end);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            long middle = start + (end - start) / 2;
+            CountRange first = new CountRange(channel, start, middle);
+            first.fork();
+            Counts second = new CountRange(channel, middle, end).compute();
+            return first.join().merge(second);
+        }
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            pool = new ForkJoinPool(Integer.getInteger("cli.wc.threads", cores));
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Splits a file into the words of Files.readAllLines and line.split("\\s+"), scanning the
+// decoded characters directly instead of building a String per line.
+final class WordTokenizer implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CACHE_SIZE = 4096;     // power of two
+    private static final int MAX_CACHED_LENGTH = 32;
+
+    private final Reader reader;
+    private char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private boolean eof;
+
+    private boolean lineEmpty = true;    // nothing read yet on the current line
+    private boolean leadingSpace;        // the line starts with whitespace and has no word yet
+    private boolean afterCarriageReturn; // a \n right after \r ends no line
+
+    private final String[] cache = new String[CACHE_SIZE];
+
+    WordTokenizer(Reader reader) {
+        this.reader = reader;
+    }
+
+    // Decodes UTF-8 and reports malformed input, like Files.readAllLines.
+    static WordTokenizer open(Path file) throws IOException {
+        WordTokenizer tokenizer = new WordTokenizer(
+                new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8.newDecoder()));
+        Metrics.read(Files.size(file));
+        return tokenizer;
+    }
+
+    // Lazy stream of the words of the file. Read errors are thrown as UncheckedIOException,
+    // the stream must be closed to release the file.
+    static Stream<String> stream(Path file) throws IOException {
+        WordTokenizer tokenizer = open(file);
+        Iterator<String> words = new Iterator<>() {
+            private String next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = tokenizer.next();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String word = next;
+                next = null;
+                return word;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(words, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        tokenizer.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    // Next word, or null at the end of the input.
+    String next() throws IOException {
+        while (true) {
+            if (position == limit && !fill(position)) {
+                return null;
+            }
+            char c = buffer[position];
+
+            if (c == '\n' || c == '\r') {
+                position++;
+                if (c == '\n' && afterCarriageReturn) {
+                    afterCarriageReturn = false;
+                    continue; // second half of \r\n
+                }
+                afterCarriageReturn = c == '\r';
+                boolean empty = lineEmpty;
+                lineEmpty = true;
+                leadingSpace = false;
+                if (empty) {
+                    return "";
+                }
+                continue;
+            }
+            afterCarriageReturn = false;
+
+            if (isSpace(c)) {
+                position++;
+                if (lineEmpty) {
+                    leadingSpace = true;
+                    lineEmpty = false;
+                }
+                continue;
+            }
+
+            lineEmpty = false;
+            if (leadingSpace) {
+                leadingSpace = false;
+                return ""; // the word itself is read by the next call
+            }
+            return word();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    // Reads the word starting at position, refilling the buffer when it continues past the end.
+    private String word() throws IOException {
+        int start = position;
+        while (true) {
+            while (position < limit) {
+                char c = buffer[position];
+                if (isSpace(c) || c == '\n' || c == '\r') {
+                    return token(start, position - start);
+                }
+                position++;
+            }
+            int length = position - start;
+            if (!fill(start)) {
+                return token(0, length);
+            }
+            start = 0; // fill moved the word to the front
+        }
+    }
+
+    // Reads more input, keeping buffer[keep, limit) at the front of the buffer.
+    // Returns false at the end of the input.
+    private boolean fill(int keep) throws IOException {
+        int kept = limit - keep;
+        if (keep > 0) {
+            System.arraycopy(buffer, keep, buffer, 0, kept);
+        }
+        position -= keep;
+        limit = kept;
+        if (eof) {
+            return false;
+        }
+        if (kept == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2); // one word longer than the buffer
+        }
+
+        int read;
+        do {
+            read = reader.read(buffer, limit, buffer.length - limit);
+        } while (read == 0);
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    private String token(int offset, int length) {
+        if (length > MAX_CACHED_LENGTH) {
+            return new String(buffer, offset, length);
+        }
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+
+        String cached = cache[slot];
+        if (cached != null && cached.length() == length && matches(cached, offset)) {
+            return cached;
+        }
+        String word = new String(buffer, offset, length);
+        cache[slot] = word;
+        return word;
+    }
+
+    private boolean matches(String word, int offset) {
+        for (int i = 0; i < word.length(); i++) {
+            if (word.charAt(i) != buffer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The characters matched by \s (without UNICODE_CHARACTER_CLASS), minus the line breaks.
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\u000B' || c == '\f';
+    }
+}
@@ -0,0 +1,132 @@
+package benchmarks;
+
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+// The interpreter lives in the default package, which can't be imported from here: its
+// methods are looked up once as static final method handles, which the JIT inlines.
+final class Cli {
+
+    private static final Class<?> CLI;
+    private static final Class<?> SINK;
+    private static final MethodHandle NEW_CLI;
+    private static final MethodHandle NEW_BUFFERED_SINK;
+    private static final MethodHandle SET_OUTPUT;
+    private static final MethodHandle FLUSH;
+    private static final MethodHandle READ_FILE;
+    private static final MethodHandle CAT;
+    private static final MethodHandle SORT_FILE;
+    private static final MethodHandle SORT_LIST;
+    private static final MethodHandle UNIQ;
+    private static final MethodHandle PIPE;
+    private static final MethodHandle EXECUTE_COMMAND;
+    private static final MethodHandle SERVER_OPEN;
+    private static final MethodHandle SERVER_SERVE;
+    private static final MethodHandle SERVER_CLOSE;
+
+    static {
+        try {
+            CLI = Class.forName("CLI");
+            SINK = Class.forName("OutputSink");
+            Class<?> bufferedSink = Class.forName("BufferedSink");
+            // classpath classes are in the unnamed module, so package-private members are reachable
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(CLI, MethodHandles.lookup());
+
+            NEW_CLI = lookup.findConstructor(CLI, MethodType.methodType(void.class));
+            NEW_BUFFERED_SINK = MethodHandles.lookup().findConstructor(bufferedSink,
+                    MethodType.methodType(void.class, WritableByteChannel.class));
+            SET_OUTPUT = lookup.findVirtual(CLI, "setOutput", MethodType.methodType(void.class, SINK));
+            FLUSH = MethodHandles.lookup().findVirtual(SINK, "flush", MethodType.methodType(void.class));
+            READ_FILE = lookup.findStatic(CLI, "readFile", MethodType.methodType(List.class, String.class));
+            CAT = lookup.findStatic(CLI, "cat", MethodType.methodType(List.class, String.class));
+            SORT_FILE = lookup.findVirtual(CLI, "sortFile", MethodType.methodType(List.class, String.class));
+            SORT_LIST = lookup.findVirtual(CLI, "sortList", MethodType.methodType(List.class, List.class));
+            UNIQ = lookup.findVirtual(CLI, "uniq", MethodType.methodType(List.class, List.class));
+            PIPE = lookup.findVirtual(CLI, "pipe", MethodType.methodType(void.class, String[].class));
+            EXECUTE_COMMAND = lookup.findVirtual(CLI, "executeCommand", MethodType.methodType(void.class, String.class));
+
+            Class<?> server = Class.forName("Server");
+            MethodHandles.Lookup serverLookup = MethodHandles.privateLookupIn(server, MethodHandles.lookup());
+            SERVER_OPEN = serverLookup.findStatic(server, "open", MethodType.methodType(server, String.class));
+            SERVER_SERVE = serverLookup.findVirtual(server, "serve", MethodType.methodType(void.class));
+            SERVER_CLOSE = serverLookup.findVirtual(server, "close", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object cli;
+    private final Object sink;
+
+    // A session whose output is encoded as usual but thrown away.
+    Cli() {
+        try {
+            cli = NEW_CLI.invoke();
+            sink = NEW_BUFFERED_SINK.invoke(Channels.newChannel(OutputStream.nullOutputStream()));
+            SET_OUTPUT.invoke(cli, sink);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<String> readFile(String file) throws Throwable {
+        return (List<String>) READ_FILE.invoke(file);
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<String> cat(String file) throws Throwable {
+        return (List<String>) CAT.invoke(file);
+    }
+
+    @SuppressWarnings("unchecked")
+    List<String> sortFile(String file) throws Throwable {
+        return (List<String>) SORT_FILE.invoke(cli, file);
+    }
+
+    @SuppressWarnings("unchecked")
+    List<String> sortList(List<String> lines) throws Throwable {
+        return (List<String>) SORT_LIST.invoke(cli, lines);
+    }
+
+    @SuppressWarnings("unchecked")
+    List<String> uniq(List<String> lines) throws Throwable {
+        return (List<String>) UNIQ.invoke(cli, lines);
+    }
+
+    void pipe(String... commands) throws Throwable {
+        PIPE.invoke(cli, commands);
+        FLUSH.invoke(sink);
+    }
+
+    void executeCommand(String command) throws Throwable {
+        EXECUTE_COMMAND.invoke(cli, command);
+        FLUSH.invoke(sink);
+    }
+
+    // A server (java CLI --serve) listening on the socket, accepting on a daemon thread.
+    static AutoCloseable serve(String socket) throws Throwable {
+        Object server = SERVER_OPEN.invoke(socket);
+        Thread accepting = new Thread(() -> {
+            try {
+                SERVER_SERVE.invoke(server);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }, "server");
+        accepting.setDaemon(true);
+        accepting.start();
+        return () -> {
+            try {
+                SERVER_CLOSE.invoke(server);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+}
@@ -0,0 +1,22 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+// Cost of getting a line to its command: parsing, cache lookup and registry dispatch.
+// The commands themselves are cheap so that dispatch dominates.
+@State(Scope.Thread)
+public class DispatchBenchmark extends BenchmarkDefaults {
+
+    @Param({"pwd", "help", "ls-r extra", "unknown command"})
+    public String command;
+
+    private final Cli cli = new Cli();
+
+    @Benchmark
+    public void executeCommand() throws Throwable {
+        cli.executeCommand(command);
+    }
+}
@@ -0,0 +1,70 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Generated input file shared by the benchmarks. Lines are made of lowercase words of
+// 8 letters separated by spaces; duplicateRatio of them repeat an earlier line.
+@State(Scope.Benchmark)
+public class Fixture {
+
+    @Param({"10000", "1000000"})
+    public int lineCount;
+
+    @Param({"16", "128"})
+    public int lineLength;
+
+    @Param({"0.0", "0.5", "0.9"})
+    public double duplicateRatio;
+
+    Path file;
+    List<String> lines;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        Random random = new Random(42); // same fixture for every run
+        lines = new ArrayList<>(lineCount);
+        StringBuilder line = new StringBuilder(lineLength);
+
+        for (int i = 0; i < lineCount; i++) {
+            if (!lines.isEmpty() && random.nextDouble() < duplicateRatio) {
+                lines.add(lines.get(random.nextInt(lines.size())));
+                continue;
+            }
+            line.setLength(0);
+            for (int c = 0; c < lineLength; c++) {
+                line.append(c % 9 == 8 ? ' ' : (char) ('a' + random.nextInt(26)));
+            }
+            lines.add(line.toString());
+        }
+
+        file = Files.createTempFile("cli-bench-", ".txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (String l : lines) {
+                writer.write(l);
+                writer.newLine();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    String path() {
+        return file.toString();
+    }
+}
@@ -0,0 +1,21 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+public class PipeBenchmark extends BenchmarkDefaults {
+
+    private final Cli cli = new Cli();
+
+    @Benchmark
+    public void catSortUniq(Fixture fixture) throws Throwable {
+        cli.pipe("cat " + fixture.path(), "sort", "uniq");
+    }
+
+    @Benchmark
+    public void sortUniq(Fixture fixture) throws Throwable {
+        cli.pipe("sort " + fixture.path(), "uniq");
+    }
+}
@@ -0,0 +1,28 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+@State(Scope.Thread)
+public class ReadBenchmark extends BenchmarkDefaults {
+
+    private final Cli cli = new Cli();
+
+    @Benchmark
+    public List<String> readFile(Fixture fixture) throws Throwable {
+        return Cli.readFile(fixture.path());
+    }
+
+    @Benchmark
+    public List<String> catLines(Fixture fixture) throws Throwable {
+        return Cli.cat(fixture.path());
+    }
+
+    @Benchmark
+    public void catCommand(Fixture fixture) throws Throwable {
+        cli.executeCommand("cat " + fixture.path());
+    }
+}
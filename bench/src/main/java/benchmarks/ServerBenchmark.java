@@ -0,0 +1,93 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+// Sessions served by one server (java CLI --serve): every operation connects `sessions`
+// clients at once, each running a short batch script. Sessions per second = ops/s * sessions.
+@State(Scope.Benchmark)
+public class ServerBenchmark extends BenchmarkDefaults {
+
+    @Param({"1", "100", "500"})
+    public int sessions;
+
+    private Path dir;
+    private AutoCloseable server;
+    private ExecutorService clients;
+    private byte[] script;
+
+    @Setup(Level.Trial)
+    public void start() throws Throwable {
+        dir = Files.createTempDirectory("cli-server");
+        for (int i = 0; i < 50; i++) {
+            Files.writeString(dir.resolve("file" + i + ".txt"), "line " + (i % 7) + "\nline " + i + "\n");
+        }
+        // the header of the batch mode: start in dir, end with a status trailer
+        script = ("\0batch " + dir + "\npwd\nls\ncat file7.txt | sort | uniq\nfind . -name *1.txt --sorted\ncd ..\npwd\n")
+                .getBytes(StandardCharsets.UTF_8);
+        server = Cli.serve(dir.resolve("cli.sock").toString());
+        clients = Executors.newFixedThreadPool(sessions);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        clients.shutdownNow();
+        server.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long concurrentSessions() throws Exception {
+        List<Future<Long>> running = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            running.add(clients.submit(this::session));
+        }
+        long bytes = 0;
+        for (Future<Long> session : running) {
+            bytes += session.get();
+        }
+        return bytes;
+    }
+
+    // Bytes of output of one session.
+    private long session() throws IOException {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(dir.resolve("cli.sock")))) {
+            ByteBuffer request = ByteBuffer.wrap(script);
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+            channel.shutdownOutput();
+
+            ByteBuffer response = ByteBuffer.allocate(16 * 1024);
+            long bytes = 0;
+            int read;
+            while ((read = channel.read(response)) >= 0) {
+                bytes += read;
+                response.clear();
+            }
+            return bytes;
+        }
+    }
+}
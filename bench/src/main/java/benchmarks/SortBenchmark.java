@@ -0,0 +1,25 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@State(Scope.Thread)
+public class SortBenchmark extends BenchmarkDefaults {
+
+    private final Cli cli = new Cli();
+
+    @Benchmark
+    public List<String> sortFile(Fixture fixture) throws Throwable {
+        return cli.sortFile(fixture.path());
+    }
+
+    @Benchmark
+    public List<String> sortList(Fixture fixture) throws Throwable {
+        // sortList sorts in place, so every call gets a fresh copy
+        return cli.sortList(new ArrayList<>(fixture.lines));
+    }
+}
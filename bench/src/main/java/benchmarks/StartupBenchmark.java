@@ -0,0 +1,95 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Startup of a new interpreter process (java -jar) to its first prompt and to its first
+// output, with and without the archive of mvn package -Pcds (run from the repository root).
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 30)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+    @Param({"false", "true"})
+    public boolean cds;
+
+    private final List<String> command = new ArrayList<>();
+    private Process process;
+
+    @Setup(Level.Trial)
+    public void findJar() {
+        Path jar = Paths.get(System.getProperty("cli.jar", "target/command-line-interpreter-1.0-SNAPSHOT.jar"));
+        Path archive = Paths.get(System.getProperty("cli.archive", "target/cli.jsa"));
+        if (!Files.isRegularFile(jar) || (cds && !Files.isRegularFile(archive))) {
+            throw new IllegalStateException("build " + jar + " and " + archive + " first: mvn package -Pcds");
+        }
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (cds) {
+            command.add("-XX:SharedArchiveFile=" + archive);
+        }
+        command.add("-jar");
+        command.add(jar.toString());
+    }
+
+    @TearDown(Level.Invocation)
+    public void stop() throws InterruptedException {
+        process.destroyForcibly();
+        process.waitFor();
+    }
+
+    @Benchmark
+    public int firstPrompt() throws IOException {
+        process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        return readUntil(process.getInputStream(), " $ ");
+    }
+
+    @Benchmark
+    public int firstOutput() throws IOException {
+        List<String> batch = new ArrayList<>(command);
+        batch.add("-");
+        process = new ProcessBuilder(batch).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        try (OutputStream script = process.getOutputStream()) {
+            script.write("pwd\n".getBytes(StandardCharsets.UTF_8));
+        }
+        return readUntil(process.getInputStream(), "\n");
+    }
+
+    // Bytes read until the text was printed.
+    private static int readUntil(InputStream output, String text) throws IOException {
+        StringBuilder printed = new StringBuilder();
+        byte[] buffer = new byte[4096];
+        int read;
+        while (printed.indexOf(text) < 0 && (read = output.read(buffer)) >= 0) {
+            printed.append(new String(buffer, 0, read, StandardCharsets.ISO_8859_1));
+        }
+        if (printed.indexOf(text) < 0) {
+            throw new IllegalStateException("the interpreter exited without printing " + text.trim());
+        }
+        return printed.length();
+    }
+}
@@ -0,0 +1,28 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+@State(Scope.Thread)
+public class UniqBenchmark extends BenchmarkDefaults {
+
+    private final Cli cli = new Cli();
+
+    @Benchmark
+    public List<String> uniq(Fixture fixture) throws Throwable {
+        return cli.uniq(fixture.lines);
+    }
+
+    @Benchmark
+    public void uniqGlobal(Fixture fixture) throws Throwable {
+        cli.pipe("cat " + fixture.path(), "uniq --global");
+    }
+
+    @Benchmark
+    public void uniqGlobalCounts(Fixture fixture) throws Throwable {
+        cli.pipe("cat " + fixture.path(), "uniq --global -c");
+    }
+}